@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+import okio.Okio;
+import okio.Sink;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+
+/**
+ * AES in counter mode using several cores. Counter mode can start at any block of the stream, so blocks
+ * are decrypted (or encrypted, the operation is the same) concurrently on an {@link Executor} and written
+ * in order.
+ * <p>
+ * The counter starts at the first byte the filter receives: add it first, so that it receives the body
+ * as sent by the server.
+ */
+public final class AesCtrFilter implements SinkFilter {
+    private static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int AES_BLOCK_SIZE = 16;
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(e);
+            }
+        }
+    };
+
+    /**
+     * Process 128 KiB blocks, with up to two blocks per available processor in flight.
+     */
+    public static AesCtrFilter create(Executor executor, byte[] key, byte[] iv) {
+        return create(executor, key, iv, DEFAULT_BLOCK_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Process blocks of {@code blockSize} bytes, a multiple of 16. At most {@code maxInFlight} blocks
+     * per download are buffered, waiting to be processed or written.
+     */
+    public static AesCtrFilter create(Executor executor, byte[] key, byte[] iv, int blockSize, int maxInFlight) {
+        Util.checkNotNull(executor, "executor == null");
+        Util.checkNotNull(key, "key == null");
+        Util.checkNotNull(iv, "iv == null");
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Invalid key length: " + key.length);
+        }
+        if (iv.length != AES_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid iv length: " + iv.length);
+        }
+        if (blockSize <= 0 || blockSize % AES_BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("blockSize must be a positive multiple of 16");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight <= 0");
+        }
+        return new AesCtrFilter(executor, new SecretKeySpec(key, "AES"), iv.clone(), blockSize, maxInFlight);
+    }
+
+    private final Executor executor;
+    private final SecretKeySpec key;
+    private final byte[] iv;
+    private final int blockSize;
+    private final int maxInFlight;
+
+    private AesCtrFilter(Executor executor, SecretKeySpec key, byte[] iv, int blockSize, int maxInFlight) {
+        this.executor = executor;
+        this.key = key;
+        this.iv = iv;
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public Sink create(Download download, Sink downstream) {
+        return Okio.sink(new BlockOutputStream(Okio.buffer(downstream).outputStream(), executor, blockSize, maxInFlight) {
+            @Override
+            void encode(long position, byte[] data, int length, Buffer out) throws IOException {
+                crypt(position, data, length);
+                out.write(data, 0, length);
+            }
+        });
+    }
+
+    /**
+     * Process {@code data} in place, starting at {@code position} in the stream.
+     */
+    void crypt(long position, byte[] data, int length) throws IOException {
+        Cipher cipher = CIPHERS.get();
+
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(counter(position / AES_BLOCK_SIZE)));
+
+            int skip = (int) (position % AES_BLOCK_SIZE);
+            if (skip > 0) {
+                cipher.update(new byte[skip]);
+            }
+
+            cipher.update(data, 0, length, data, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * The 128 bits big-endian counter of block {@code index}.
+     */
+    private byte[] counter(long index) {
+        byte[] counter = iv.clone();
+        long carry = index;
+
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xff) + (carry & 0xff);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+
+        return counter;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Splits the stream in blocks encoded concurrently on an {@link Executor}, and writes the encoded
+ * blocks downstream in order. At most {@code maxInFlight} blocks are pending, which bounds the memory used.
+ * Flushing encodes the current partial block.
+ */
+abstract class BlockOutputStream extends OutputStream {
+    private final OutputStream downstream;
+    private final Executor executor;
+    private final int blockSize;
+    private final int maxInFlight;
+    private final Deque<Block> inFlight = new ArrayDeque<>();
+    private final Deque<byte[]> free = new ArrayDeque<>();
+    private byte[] block;
+    private int length;
+    private long position;
+    private boolean closed;
+
+    BlockOutputStream(OutputStream downstream, Executor executor, int blockSize, int maxInFlight) {
+        this.downstream = downstream;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Encode {@code length} bytes of {@code data}, found at {@code position} in the stream, into {@code out}.
+     * Called concurrently from the executor threads.
+     */
+    abstract void encode(long position, byte[] data, int length, Buffer out) throws IOException;
+
+    /**
+     * Encode a stream with no bytes into {@code out}, called on close. Writes nothing by default.
+     */
+    void encodeEmpty(Buffer out) throws IOException {
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+
+        while (len > 0) {
+            if (block == null) {
+                block = free.isEmpty() ? new byte[blockSize] : free.pop();
+            }
+
+            int n = Math.min(len, blockSize - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+
+            if (length == blockSize) {
+                submit();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+
+        drain();
+        downstream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            drain();
+
+            if (position == 0) {
+                Buffer out = new Buffer();
+                encodeEmpty(out);
+                out.writeTo(downstream);
+            }
+        } finally {
+            closed = true;
+
+            for (Block pending : inFlight) {
+                pending.cancel(false);
+            }
+            inFlight.clear();
+            downstream.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (length > 0) {
+            submit();
+        }
+
+        while (!inFlight.isEmpty()) {
+            writeOldest();
+        }
+    }
+
+    private void submit() throws IOException {
+        if (inFlight.size() == maxInFlight) {
+            writeOldest();
+        }
+
+        Block pending = new Block(position, block, length);
+        executor.execute(pending);
+        inFlight.add(pending);
+
+        position += length;
+        block = null;
+        length = 0;
+    }
+
+    private void writeOldest() throws IOException {
+        Block oldest = inFlight.peek();
+        Buffer encoded;
+
+        try {
+            encoded = oldest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+
+        inFlight.poll();
+        encoded.writeTo(downstream);
+        free.push(oldest.data);
+    }
+
+    private final class Block extends FutureTask<Buffer> {
+        final byte[] data;
+
+        Block(final long position, final byte[] data, final int length) {
+            super(new Callable<Buffer>() {
+                @Override
+                public Buffer call() throws Exception {
+                    Buffer out = new Buffer();
+                    encode(position, data, length, out);
+                    return out;
+                }
+            });
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Publishes the body of a {@link Download} instead of writing it to a file.
+ * <p>
+ * The request is sent on the first {@link Subscription#request(long)} and the body is read one buffer
+ * per requested element, on the thread of the call. The {@link ByteBuffer} passed to
+ * {@link Subscriber#onNext(Object)} is reused once it returns: subscribers keeping the bytes must copy them.
+ */
+final class BodyPublisher implements Publisher<ByteBuffer> {
+    static final int BUFFER_SIZE = 8192;
+
+    private final Download download;
+    private boolean subscribed;
+
+    BodyPublisher(Download download) {
+        this.download = download;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        Util.checkNotNull(subscriber, "subscriber == null");
+
+        synchronized (this) {
+            if (subscribed) {
+                subscriber.onSubscribe(new BodySubscription(null, null));
+                subscriber.onError(new IllegalStateException("Only one subscriber allowed."));
+                return;
+            }
+            subscribed = true;
+        }
+
+        subscriber.onSubscribe(new BodySubscription(download, subscriber));
+    }
+
+    private static final class BodySubscription implements Subscription, Sink {
+        private final Download download;
+        private final Subscriber<? super ByteBuffer> subscriber;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long demand;
+        private boolean started;
+        private boolean done;
+        private Throwable pendingError;
+
+        BodySubscription(Download download, Subscriber<? super ByteBuffer> subscriber) {
+            this.download = download;
+            this.subscriber = subscriber;
+            this.done = download == null;
+        }
+
+        @Override
+        public void request(long n) {
+            boolean start;
+            Throwable error = null;
+
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+
+                if (n <= 0) {
+                    done = true;
+                    start = false;
+                    error = new IllegalArgumentException("n <= 0");
+
+                    // Signals are serial: once started, the thread reading the body signals the error when it stops.
+                    if (started) {
+                        pendingError = error;
+                        error = null;
+                    }
+                    started = true;
+                    notifyAll();
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    start = !started;
+                    started = true;
+                    notifyAll();
+                }
+            }
+
+            if (n <= 0) {
+                download.cancel();
+
+                if (error != null) {
+                    subscriber.onError(error);
+                }
+            } else if (start) {
+                start();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                notifyAll();
+            }
+
+            download.cancel();
+        }
+
+        private void start() {
+            final Object event = Events.INSTANCE.beginDownload();
+
+            download.call.enqueue(new Callback<ResponseBody>() {
+                @Override
+                public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                    String outcome = null;
+                    Throwable failure = null;
+                    boolean completed = false;
+
+                    try {
+                        if (download.canceled) {
+                            throw new IOException("Canceled");
+                        }
+                        if (!response.isSuccessful()) {
+                            outcome = Download.outcome(response);
+                            throw new IOException("HTTP " + response.code() + " " + response.message());
+                        }
+
+                        if (transfer(response)) {
+                            outcome = Download.outcome(response);
+                            completed = true;
+                        }
+                    } catch (Throwable t) {
+                        failure = t;
+                    } finally {
+                        Util.closeQuietly(response.body(), response.errorBody());
+                        Events.INSTANCE.commitDownload(event, download, download.bytesRead,
+                                outcome != null ? outcome : download.failureOutcome());
+                    }
+
+                    // Signal once the event is committed, subscribers may look for it as soon as they are done.
+                    if (completed) {
+                        complete();
+                    } else if (failure != null) {
+                        error(failure);
+                    }
+                    signalPendingError();
+                }
+
+                @Override
+                public void onFailure(Call<ResponseBody> call, Throwable t) {
+                    Events.INSTANCE.commitDownload(event, download, download.bytesRead, download.failureOutcome());
+                    error(t);
+                    signalPendingError();
+                }
+            });
+        }
+
+        /**
+         * Read the body as requested, returns false when the subscription was canceled.
+         */
+        private boolean transfer(Response<ResponseBody> response) throws IOException {
+            BufferedSource input = Okio.buffer(download.source(response.body(), 0));
+            download.checkHead(response, input, 0);
+
+            Sink output = this;
+            DigestSink digestSink = null;
+
+            if (download.checksum != Checksum.NONE) {
+                output = digestSink = new DigestSink(output, download.checksum);
+            }
+
+            Buffer chunk = new Buffer();
+
+            while (awaitDemand() && input.read(chunk, BUFFER_SIZE) != -1) {
+                output.write(chunk, chunk.size());
+            }
+
+            if (isDone()) {
+                return false;
+            }
+
+            String hash = null;
+
+            if (digestSink != null) {
+                hash = digestSink.hash().hex();
+                Events.INSTANCE.commitChecksum(download.checksum, digestSink.bytes, digestSink.hashingNanos);
+            }
+
+            Object validationEvent = Events.INSTANCE.beginValidation();
+            download.validationCallback.validate(download, hash);
+            Events.INSTANCE.commitValidation(validationEvent, "callback");
+
+            return true;
+        }
+
+        private synchronized boolean awaitDemand() throws InterruptedIOException {
+            while (demand == 0 && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            return !done;
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * Emit the chunk read after {@link #awaitDemand()}, through the recycled buffer.
+         */
+        @Override
+        public void write(Buffer source, long byteCount) {
+            synchronized (this) {
+                demand--;
+            }
+
+            buffer.clear();
+            source.read(buffer.array(), 0, (int) byteCount);
+            buffer.limit((int) byteCount);
+            subscriber.onNext(buffer);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void signalPendingError() {
+            Throwable error;
+
+            synchronized (this) {
+                error = pendingError;
+                pendingError = null;
+            }
+
+            if (error != null) {
+                subscriber.onError(error);
+            }
+        }
+
+        private void complete() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+            }
+
+            subscriber.onComplete();
+        }
+
+        private void error(Throwable t) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+            }
+
+            subscriber.onError(t);
+        }
+    }
+}
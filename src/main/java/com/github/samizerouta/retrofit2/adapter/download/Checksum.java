@@ -17,8 +17,14 @@
 package com.github.samizerouta.retrofit2.adapter.download;
 
 public enum Checksum {
-    MD5,
-    SHA1,
-    SHA256,
-    NONE
+    MD5("MD5"),
+    SHA1("SHA-1"),
+    SHA256("SHA-256"),
+    NONE(null);
+
+    final String algorithm;
+
+    Checksum(String algorithm) {
+        this.algorithm = algorithm;
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Tracks how much of a file has been written, for readers of a file still downloading.
+ */
+final class CommittedOffset {
+    private long committed;
+    private boolean finished;
+    private Throwable failure;
+
+    synchronized long get() {
+        return committed;
+    }
+
+    /**
+     * The file is written from {@code offset}, the bytes before are already on disk.
+     */
+    synchronized void start(long offset) {
+        committed = offset;
+        notifyAll();
+    }
+
+    /**
+     * Count the bytes written to {@code out}, which writes directly to the file.
+     */
+    OutputStream track(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                commit(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                commit(len);
+            }
+        };
+    }
+
+    /**
+     * Count {@code byteCount} bytes written at the committed offset.
+     */
+    synchronized void commit(long byteCount) {
+        committed += byteCount;
+        notifyAll();
+    }
+
+    synchronized void complete(long length) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        committed = length;
+        notifyAll();
+    }
+
+    synchronized void fail(Throwable failure) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        this.failure = failure;
+        notifyAll();
+    }
+
+    /**
+     * Wake up the threads in {@link #await}, to notice that their channel was closed.
+     */
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Block until the byte at {@code position} is written, the download is over or {@code channel}
+     * is closed, and return the committed offset.
+     */
+    synchronized long await(long position, ProgressiveChannel channel) throws IOException {
+        while (committed <= position && !finished && channel.open) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (failure != null) {
+            throw new IOException("Download failed", failure);
+        }
+
+        return committed;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+import okio.ByteString;
+import okio.ForwardingSink;
+import okio.Sink;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the {@link Checksum} of the bytes written through it.
+ * Unlike {@link okio.HashingSink} the digest can be seeded with bytes already on disk.
+ * <p>
+ * {@link MessageDigest} instances are reused per thread once {@link #hash()} has reset them.
+ */
+final class DigestSink extends ForwardingSink {
+    private static final ThreadLocal<MessageDigest[]> DIGESTS = new ThreadLocal<MessageDigest[]>() {
+        @Override
+        protected MessageDigest[] initialValue() {
+            return new MessageDigest[Checksum.values().length];
+        }
+    };
+
+    private static MessageDigest acquire(Checksum checksum) {
+        MessageDigest[] digests = DIGESTS.get();
+        MessageDigest digest = digests[checksum.ordinal()];
+
+        if (digest != null) {
+            digests[checksum.ordinal()] = null;
+            return digest;
+        }
+
+        try {
+            return MessageDigest.getInstance(checksum.algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void release(Checksum checksum, MessageDigest digest) {
+        DIGESTS.get()[checksum.ordinal()] = digest;
+    }
+
+    private final Checksum checksum;
+    private final MessageDigest digest;
+    long bytes;
+    long hashingNanos;
+    private final OutputStream updater = new OutputStream() {
+        @Override
+        public void write(int b) {
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+    };
+
+    DigestSink(Sink delegate, Checksum checksum) {
+        super(delegate);
+        this.checksum = checksum;
+        this.digest = acquire(checksum);
+    }
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        long start = System.nanoTime();
+        source.copyTo(updater, 0, byteCount);
+        hashingNanos += System.nanoTime() - start;
+        bytes += byteCount;
+        super.write(source, byteCount);
+    }
+
+    /**
+     * Update the digest with the first {@code length} bytes of {@code file}, without writing them.
+     */
+    void seed(File file, long length) throws IOException {
+        InputStream input = new FileInputStream(file);
+
+        try {
+            byte[] buffer = new byte[8192];
+
+            while (length > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, length));
+
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+
+                digest.update(buffer, 0, read);
+                length -= read;
+            }
+        } finally {
+            Util.closeQuietly(input);
+        }
+    }
+
+    ByteString hash() {
+        ByteString hash = ByteString.of(digest.digest());
+        release(checksum, digest);
+        return hash;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes a file bypassing the page cache with {@code O_DIRECT}.
+ * Writes are issued from an aligned buffer in multiples of the file store block size,
+ * a partial last block is padded then truncated away.
+ * <p>
+ * Where direct I/O is not supported by the runtime or the file system, {@link #open}
+ * falls back to a {@link DropBehindSink}, a regular channel forced to disk periodically so that
+ * dirty pages do not pile up.
+ */
+final class DirectIoSink implements Sink {
+    static final int BUFFER_SIZE = 1024 * 1024;
+    static final long FORCE_INTERVAL = 8 * 1024 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    static Sink open(File file) throws IOException {
+        Path path = file.toPath();
+        OpenOption direct = directOption();
+
+        if (direct != null) {
+            FileChannel channel = null;
+
+            try {
+                channel = FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING, direct);
+                int blockSize = blockSize(path);
+                ByteBuffer buffer = alignedBuffer(BUFFER_SIZE, blockSize);
+
+                if (buffer != null) {
+                    return new DirectIoSink(channel, buffer, blockSize);
+                }
+            } catch (IOException | UnsupportedOperationException ignored) {
+                // Direct I/O is not supported by this file system.
+            }
+
+            Util.closeQuietly(channel);
+        }
+
+        return new DropBehindSink(FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Append to {@code file}. Direct writes must start at an aligned offset, so appends always use
+     * a {@link DropBehindSink}.
+     */
+    static Sink append(File file) throws IOException {
+        return new DropBehindSink(FileChannel.open(file.toPath(), WRITE, APPEND));
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int blockSize;
+    private final byte[] bytes = new byte[8192];
+    private long position;
+
+    DirectIoSink(FileChannel channel, ByteBuffer buffer, int blockSize) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        while (byteCount > 0) {
+            int read = source.read(bytes, 0, (int) Math.min(Math.min(byteCount, bytes.length), buffer.remaining()));
+            buffer.put(bytes, 0, read);
+            byteCount -= read;
+
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                writeFully(buffer, position);
+                position += buffer.capacity();
+                buffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Write the buffered bytes, padding the last block. The padding is truncated away and the
+     * buffered bytes are kept so that the next full buffer write overwrites the partial block.
+     */
+    @Override
+    public void flush() throws IOException {
+        int tail = buffer.position();
+
+        if (tail == 0) {
+            return;
+        }
+
+        ByteBuffer padded = buffer.duplicate();
+        padded.position(0);
+        padded.limit((tail + blockSize - 1) / blockSize * blockSize);
+        writeFully(padded, position);
+        channel.truncate(position + tail);
+    }
+
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * {@code ExtendedOpenOption.DIRECT}, available from Java 10.
+     */
+    private static OpenOption directOption() {
+        try {
+            Class<?> cls = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+
+            for (Object option : cls.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) option).name())) {
+                    return (OpenOption) option;
+                }
+            }
+        } catch (ClassNotFoundException ignored) {
+        }
+        return null;
+    }
+
+    /**
+     * {@code FileStore.getBlockSize()}, available from Java 10.
+     */
+    private static int blockSize(Path path) throws IOException {
+        try {
+            Method getBlockSize = FileStore.class.getMethod("getBlockSize");
+            return (int) (long) (Long) getBlockSize.invoke(Files.getFileStore(path));
+        } catch (ReflectiveOperationException e) {
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * {@code ByteBuffer.alignedSlice(int)}, available from Java 9.
+     */
+    private static ByteBuffer alignedBuffer(int size, int alignment) {
+        int capacity = Math.max(size / alignment, 1) * alignment;
+
+        try {
+            Method alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+            ByteBuffer buffer = (ByteBuffer) alignedSlice.invoke(ByteBuffer.allocateDirect(capacity + alignment), alignment);
+            buffer.limit(capacity);
+            return buffer.slice();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static final class DropBehindSink implements Sink {
+        private final FileChannel channel;
+        private final byte[] bytes = new byte[8192];
+        private long unforced;
+
+        DropBehindSink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+                int read = source.read(bytes, 0, (int) Math.min(byteCount, bytes.length));
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+
+                byteCount -= read;
+                unforced += read;
+
+                if (unforced >= FORCE_INTERVAL) {
+                    channel.force(false);
+                    unforced = 0;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
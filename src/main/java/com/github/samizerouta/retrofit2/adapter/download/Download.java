@@ -19,18 +19,27 @@ package com.github.samizerouta.retrofit2.adapter.download;
 import okhttp3.Request;
 import okhttp3.ResponseBody;
 import okio.*;
+import org.reactivestreams.Publisher;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public final class Download implements Call<ResponseBody> {
+    static final long MIN_STRIPE_LENGTH = 1024 * 1024;
+
     static final Executor CURRENT_THREAD_EXECUTOR = new Executor() {
         @Override
         public void execute(Runnable command) {
@@ -39,47 +48,102 @@ public final class Download implements Call<ResponseBody> {
     };
 
     final Call<ResponseBody> delegate;
+    final Call<ResponseBody> call;
+    final okhttp3.Call.Factory callFactory;
+    final Mirrors mirrors;
+    final Executor stripeExecutor;
+    final HedgePolicy hedgePolicy;
     final Executor callbackExecutor;
     final Checksum checksum;
     final ValidationCallback validationCallback;
     final ProgressListener progressListener;
     final List<Filter<?>> filters;
+    final List<Tee> tees;
+    final TeePolicy teePolicy;
+    final WriteBehind writeBehind;
+    final boolean directIo;
+    final long offset;
     final Object tag;
     final File file;
 
+    final List<HeadValidator> headValidators;
+    final int headLength;
+    final long maxContentLength;
+    final long expectedContentLength;
+
     volatile boolean canceled;
+    volatile long bytesRead;
+    // Progress, shared by the sources of a striped download. Guarded by progressReport.
+    private long totalBytesRead;
+    private long contentLength = -1;
+    private long unreportedBytes;
+    private boolean reportScheduled;
+    final CommittedOffset committed = new CommittedOffset();
+    boolean aborted;
+    boolean opened;
 
     Download(Builder builder) {
         delegate = builder.delegate.clone();
+        callFactory = builder.callFactory;
+        mirrors = builder.mirrors;
+        stripeExecutor = builder.stripeExecutor;
+        hedgePolicy = builder.hedgePolicy;
+        Call<ResponseBody> call = mirrors == null ? delegate : new MirrorCall(callFactory, delegate.request(), mirrors);
+        this.call = hedgePolicy == null ? call : new HedgedCall(call, hedgePolicy);
         callbackExecutor = builder.callbackExecutor;
         checksum = builder.checksum;
         validationCallback = builder.validationCallback;
         progressListener = builder.progressListener;
-        filters = Collections.unmodifiableList(new ArrayList<>(builder.filters));
+        filters = Util.immutableCopy(builder.filters);
+        tees = Util.immutableCopy(builder.tees);
+        teePolicy = builder.teePolicy;
+        writeBehind = builder.writeBehind;
+        directIo = builder.directIo;
+        offset = builder.offset;
+        headValidators = Util.immutableCopy(builder.headValidators);
+        headLength = builder.headLength;
+        maxContentLength = builder.maxContentLength;
+        expectedContentLength = builder.expectedContentLength;
         tag = builder.tag;
         file = builder.file;
     }
 
     @Override
     public Response<ResponseBody> execute() throws IOException {
-        Response<ResponseBody> response = delegate.execute();
+        Object event = Events.INSTANCE.beginDownload();
+        String outcome = null;
 
-        if (canceled) {
-            throw new IOException("Canceled");
-        }
+        try {
+            Response<ResponseBody> response = call.execute();
 
-        if (!response.isSuccessful()) {
-            return response;
-        }
+            if (canceled) {
+                throw new IOException("Canceled");
+            }
+
+            if (!response.isSuccessful()) {
+                outcome = outcome(response);
+                committed.fail(new IOException("HTTP " + response.code()));
+                return response;
+            }
 
-        copyToFile(response.body());
+            copyToFile(response);
+            outcome = outcome(response);
+            committed.complete(file.length());
 
-        return response;
+            return response;
+        } catch (IOException | RuntimeException e) {
+            committed.fail(e);
+            throw e;
+        } finally {
+            Events.INSTANCE.commitDownload(event, this, bytesRead, outcome != null ? outcome : failureOutcome());
+        }
     }
 
     @Override
     public void enqueue(final Callback<ResponseBody> callback) {
-        delegate.enqueue(new Callback<ResponseBody>() {
+        final Object event = Events.INSTANCE.beginDownload();
+
+        call.enqueue(new Callback<ResponseBody>() {
             @Override
             public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
                 if (canceled) {
@@ -88,7 +152,7 @@ public final class Download implements Call<ResponseBody> {
                     callResponse(response);
                 } else {
                     try {
-                        copyToFile(response.body());
+                        copyToFile(response);
                         callResponse(response);
                     } catch (Throwable throwable) {
                         callFailure(throwable);
@@ -102,6 +166,13 @@ public final class Download implements Call<ResponseBody> {
             }
 
             void callResponse(final Response<ResponseBody> response) {
+                if (response.isSuccessful()) {
+                    committed.complete(file.length());
+                } else {
+                    committed.fail(new IOException("HTTP " + response.code()));
+                }
+
+                Events.INSTANCE.commitDownload(event, Download.this, bytesRead, outcome(response));
                 callbackExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
@@ -111,6 +182,8 @@ public final class Download implements Call<ResponseBody> {
             }
 
             void callFailure(final Throwable throwable) {
+                committed.fail(throwable);
+                Events.INSTANCE.commitDownload(event, Download.this, bytesRead, failureOutcome());
                 callbackExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
@@ -123,13 +196,13 @@ public final class Download implements Call<ResponseBody> {
 
     @Override
     public boolean isExecuted() {
-        return delegate.isExecuted();
+        return call.isExecuted();
     }
 
     @Override
     public void cancel() {
         canceled = true;
-        delegate.cancel();
+        call.cancel();
     }
 
     @Override
@@ -144,7 +217,7 @@ public final class Download implements Call<ResponseBody> {
 
     @Override
     public Request request() {
-        return delegate.request();
+        return call.request();
     }
 
     public Builder newBuilder() {
@@ -155,6 +228,18 @@ public final class Download implements Call<ResponseBody> {
         return callbackExecutor;
     }
 
+    public Mirrors mirrors() {
+        return mirrors;
+    }
+
+    public Executor stripeExecutor() {
+        return stripeExecutor;
+    }
+
+    public HedgePolicy hedgePolicy() {
+        return hedgePolicy;
+    }
+
     public Checksum checksum() {
         return checksum;
     }
@@ -163,6 +248,26 @@ public final class Download implements Call<ResponseBody> {
         return filters;
     }
 
+    public TeePolicy teePolicy() {
+        return teePolicy;
+    }
+
+    public WriteBehind writeBehind() {
+        return writeBehind;
+    }
+
+    public boolean directIo() {
+        return directIo;
+    }
+
+    public long maxContentLength() {
+        return maxContentLength;
+    }
+
+    public long expectedContentLength() {
+        return expectedContentLength;
+    }
+
     public Object tag() {
         return tag;
     }
@@ -171,12 +276,335 @@ public final class Download implements Call<ResponseBody> {
         return file;
     }
 
-    private void copyToFile(ResponseBody body) throws IOException {
-        Source input = null;
+    /**
+     * Read the file while it is downloaded. Reads block until the requested bytes are written, and fail
+     * if the download fails or is canceled. Any number of channels can be opened, before or during
+     * the download, without additional requests. With direct I/O the bytes are only readable once
+     * the download completed.
+     */
+    public SeekableByteChannel openChannel() {
+        if (file == null) {
+            throw new IllegalStateException("Not a file download.");
+        }
+        return new ProgressiveChannel(file, committed);
+    }
+
+    /**
+     * An {@link InputStream} over {@link #openChannel()}.
+     */
+    public InputStream openInputStream() {
+        return Channels.newInputStream(openChannel());
+    }
+
+    static String outcome(Response<ResponseBody> response) {
+        return response.isSuccessful() ? "success" : "HTTP " + response.code();
+    }
+
+    String failureOutcome() {
+        return canceled ? "canceled" : aborted ? "aborted" : "failure";
+    }
+
+    private void copyToFile(Response<ResponseBody> response) throws IOException {
+        // A resumed download appends to the file, unless the server ignored the range.
+        long offset = response.code() == 206 ? this.offset : 0;
+        committed.start(offset);
+        BufferedSource input = null;
+
+        try {
+            input = Okio.buffer(source(response.body(), offset));
+            checkHead(response, input, offset);
+
+            opened = true;
+            List<MirrorCall.Stripe> stripes = stripes(response, offset);
+            String hash = stripes.isEmpty()
+                    ? write(input, offset)
+                    : writeStripes((MirrorCall.FailoverBody) response.body(), stripes, input);
+
+            Object validationEvent = Events.INSTANCE.beginValidation();
+            validationCallback.validate(Download.this, hash);
+            Events.INSTANCE.commitValidation(validationEvent, "callback");
+        } finally {
+            Util.closeQuietly(input);
+
+            if (aborted && opened) {
+                discard(offset);
+
+                for (Tee tee : tees) {
+                    tee.file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the file, or truncate it back to {@code offset} when resuming, so that what was there before
+     * the download is kept.
+     */
+    private void discard(long offset) {
+        if (offset == 0) {
+            file.delete();
+            return;
+        }
+
+        try {
+            truncate(file, offset);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Write {@code input} to the file and the tees, and return the hash of the body if a checksum is set.
+     */
+    private String write(BufferedSource input, long offset) throws IOException {
         Closeable output = null;
 
         try {
-            output = new FileOutputStream(file);
+            output = sink(file, filters, offset);
+
+            if (!tees.isEmpty()) {
+                TeeSink teeSink = new TeeSink((Sink) output, teePolicy);
+                output = teeSink;
+
+                for (Tee tee : tees) {
+                    try {
+                        teeSink.add(sink(tee.file, tee.filters, 0));
+                    } catch (IOException e) {
+                        if (teePolicy == TeePolicy.FAIL) {
+                            throw e;
+                        }
+                    }
+                }
+            }
+
+            DigestSink digestSink = null;
+
+            if (checksum != Checksum.NONE) {
+                output = digestSink = new DigestSink((Sink) output, checksum);
+
+                if (offset > 0) {
+                    digestSink.seed(file, offset);
+                }
+            }
+
+            if (Events.INSTANCE != Events.NONE) {
+                output = timed((Sink) output);
+            }
+
+            BufferedSink bufferedSink = Okio.buffer((Sink) output);
+            output = bufferedSink;
+
+            bufferedSink.writeAll(input);
+            bufferedSink.flush();
+
+            if (digestSink == null) {
+                return null;
+            }
+
+            String hash = digestSink.hash().hex();
+            Events.INSTANCE.commitChecksum(checksum, digestSink.bytes, digestSink.hashingNanos);
+            return hash;
+        } finally {
+            Util.closeQuietly(output);
+        }
+    }
+
+    /**
+     * The ranges to download from several mirrors at once, or an empty list to read the body in order.
+     * Striping needs the length of the body and a file written in place without filters.
+     */
+    private List<MirrorCall.Stripe> stripes(Response<ResponseBody> response, long offset) {
+        ResponseBody body = response.body();
+
+        if (stripeExecutor == null || !(body instanceof MirrorCall.FailoverBody) || offset > 0
+                || !filters.isEmpty() || !tees.isEmpty() || writeBehind != null || directIo
+                || body.contentLength() < 2 * MIN_STRIPE_LENGTH) {
+            return Collections.emptyList();
+        }
+
+        List<MirrorCall.Stripe> stripes = ((MirrorCall.FailoverBody) body).stripes(body.contentLength(), MIN_STRIPE_LENGTH);
+        return stripes.size() > 1 ? stripes : Collections.<MirrorCall.Stripe>emptyList();
+    }
+
+    /**
+     * Write the stripes in place in the file, the first one from {@code input} on this thread and the others
+     * on the stripe executor. The checksum is computed from the file once every stripe is written.
+     */
+    private String writeStripes(MirrorCall.FailoverBody body, List<MirrorCall.Stripe> stripes, BufferedSource input)
+            throws IOException {
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        Throwable failure = null;
+
+        try {
+            channel.truncate(0);
+
+            for (final MirrorCall.Stripe stripe : stripes.subList(1, stripes.size())) {
+                final BufferedSource source = Okio.buffer(counted(body.source(stripe)));
+                FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            writeStripe(source, channel, stripe, false);
+                            return null;
+                        } finally {
+                            Util.closeQuietly(source);
+                        }
+                    }
+                });
+
+                stripeExecutor.execute(task);
+                tasks.add(task);
+            }
+
+            writeStripe(input, channel, stripes.get(0), true);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            call.cancel();
+        }
+
+        try {
+            // The stripes write to the channel until they are done, even when one failed.
+            for (FutureTask<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                        call.cancel();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    call.cancel();
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            Util.closeQuietly(channel);
+        }
+
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+
+        if (checksum == Checksum.NONE) {
+            return null;
+        }
+
+        long length = stripes.get(stripes.size() - 1).end;
+        long start = System.nanoTime();
+        DigestSink digestSink = new DigestSink(new Buffer(), checksum);
+        digestSink.seed(file, length);
+        String hash = digestSink.hash().hex();
+        Events.INSTANCE.commitChecksum(checksum, length, System.nanoTime() - start);
+        return hash;
+    }
+
+    private void writeStripe(BufferedSource source, FileChannel channel, MirrorCall.Stripe stripe, boolean first)
+            throws IOException {
+        byte[] bytes = new byte[8192];
+        long position = stripe.start;
+
+        while (position < stripe.end) {
+            int read = source.read(bytes, 0, (int) Math.min(bytes.length, stripe.end - position));
+
+            if (read == -1) {
+                throw new EOFException("Stripe ended at " + position + " instead of " + stripe.end);
+            }
+
+            Object event = Events.INSTANCE.beginChunk();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            Events.INSTANCE.commitChunk(event, "write", read);
+
+            // The first stripe is written in order from the start of the file.
+            if (first) {
+                committed.commit(read);
+            }
+        }
+    }
+
+    /**
+     * Check the announced length and run the {@link HeadValidator}s, before the files are opened.
+     */
+    void checkHead(Response<ResponseBody> response, BufferedSource input, long offset) throws IOException {
+        long contentLength = response.body().contentLength();
+
+        if (contentLength != -1) {
+            contentLength += offset;
+
+            if (maxContentLength != -1 && contentLength > maxContentLength) {
+                throw abort("Content-Length " + contentLength + " exceeds " + maxContentLength);
+            }
+            if (expectedContentLength != -1 && contentLength != expectedContentLength) {
+                throw abort("Content-Length " + contentLength + " instead of " + expectedContentLength);
+            }
+        }
+
+        if (headValidators.isEmpty()) {
+            return;
+        }
+
+        input.request(headLength);
+        ByteString head = input.buffer().snapshot((int) Math.min(headLength, input.buffer().size()));
+
+        Object event = Events.INSTANCE.beginValidation();
+
+        for (HeadValidator headValidator : headValidators) {
+            try {
+                headValidator.validate(this, response.headers(), head);
+            } catch (IOException e) {
+                abort(e.getMessage());
+                throw e;
+            } catch (RuntimeException e) {
+                abort(e.getMessage());
+                throw e;
+            }
+        }
+
+        Events.INSTANCE.commitValidation(event, "head");
+    }
+
+    /**
+     * Stop the transfer right away, what was written so far is discarded.
+     */
+    private IOException abort(String message) {
+        aborted = true;
+        call.cancel();
+        return new IOException(message);
+    }
+
+    private Sink sink(File file, List<Filter<?>> filters, long offset) throws IOException {
+        Object event = Events.INSTANCE.beginFilterChain();
+        Closeable output;
+
+        if (offset > 0) {
+            truncate(file, offset);
+            output = directIo ? DirectIoSink.append(file) : new FileOutputStream(file, true);
+        } else {
+            output = directIo ? DirectIoSink.open(file) : new FileOutputStream(file);
+        }
+
+        if (file == this.file && output instanceof OutputStream) {
+            output = committed.track((OutputStream) output);
+        }
+
+        try {
+            if (writeBehind != null) {
+                if (output instanceof OutputStream) {
+                    output = Okio.sink((OutputStream) output);
+                }
+                output = writeBehind.sink(file, (Sink) output);
+            }
 
             for (int i = filters.size(); i > 0; i--) {
                 Filter filter = filters.get(i - 1);
@@ -193,60 +621,115 @@ public final class Download implements Call<ResponseBody> {
                     output = ((SinkFilter) filter).create(this, (Sink) output);
                 }
             }
+        } catch (IOException | RuntimeException e) {
+            Util.closeQuietly(output);
+            throw e;
+        }
 
-            if (output instanceof OutputStream) {
-                output = Okio.sink((OutputStream) output);
-            }
-
-            HashingSink hashingSink = null;
+        if (output instanceof OutputStream) {
+            output = Okio.sink((OutputStream) output);
+        }
 
-            switch (checksum) {
-                case MD5:
-                    output = hashingSink = HashingSink.md5((Sink) output);
-                    break;
-                case SHA1:
-                    output = hashingSink = HashingSink.sha1((Sink) output);
-                    break;
-                case SHA256:
-                    output = hashingSink = HashingSink.sha256((Sink) output);
-                    break;
-            }
+        Events.INSTANCE.commitFilterChain(event, file, filters.size());
 
-            BufferedSink bufferedSink = Okio.buffer((Sink) output);
-            output = bufferedSink;
+        return (Sink) output;
+    }
 
-            input = source(body);
-            bufferedSink.writeAll(input);
-            bufferedSink.flush();
+    /**
+     * Record the writes to {@code sink} as {@link Events}.
+     */
+    private static Sink timed(Sink sink) {
+        return new ForwardingSink(sink) {
+            @Override
+            public void write(Buffer source, long byteCount) throws IOException {
+                Object event = Events.INSTANCE.beginChunk();
+                super.write(source, byteCount);
+                Events.INSTANCE.commitChunk(event, "write", byteCount);
+            }
+        };
+    }
 
-            final String hash = hashingSink == null ? null : hashingSink.hash().hex();
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
 
-            validationCallback.validate(Download.this, hash);
+        try {
+            if (randomAccessFile.length() < length) {
+                throw new IOException("Cannot resume " + file + " at " + length);
+            }
+            randomAccessFile.setLength(length);
         } finally {
-            Util.closeQuietly(input, output);
+            Util.closeQuietly(randomAccessFile);
         }
     }
 
-    private Source source(final ResponseBody body) {
-        return new ForwardingSource(body.source()) {
-            long totalBytesRead = 0;
+    Source source(ResponseBody body, long offset) {
+        synchronized (progressReport) {
+            totalBytesRead = offset;
+            contentLength = body.contentLength() == -1 ? -1 : offset + body.contentLength();
+        }
+
+        return counted(body.source());
+    }
+
+    // Progress is coalesced: while a report is waiting for the callback executor,
+    // bytes read meanwhile are added to it instead of queueing another report.
+    private final Runnable progressReport = new Runnable() {
+        @Override
+        public void run() {
+            long bytes;
+            long total;
+            long length;
+
+            synchronized (this) {
+                bytes = unreportedBytes;
+                total = totalBytesRead;
+                length = contentLength;
+                unreportedBytes = 0;
+                reportScheduled = false;
+            }
+
+            progressListener.onProgress(Download.this, bytes, total, length);
+        }
+    };
 
+    /**
+     * {@code source}, with the bytes read counted in the progress of this download.
+     */
+    private Source counted(Source source) {
+        return new ForwardingSource(source) {
             @Override
             public long read(Buffer sink, long byteCount) throws IOException {
                 if (canceled) {
                     throw new IOException("Canceled");
                 }
 
+                Object event = Events.INSTANCE.beginChunk();
                 final long bytesRead = super.read(sink, byteCount);
+                Events.INSTANCE.commitChunk(event, "read", Math.max(bytesRead, 0));
 
-                if (bytesRead != -1) {
-                    totalBytesRead += bytesRead;
-                    callbackExecutor.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            progressListener.onProgress(Download.this, bytesRead, totalBytesRead, body.contentLength());
+                boolean schedule;
+
+                synchronized (progressReport) {
+                    if (bytesRead == -1) {
+                        if (expectedContentLength != -1 && totalBytesRead != expectedContentLength) {
+                            throw abort(totalBytesRead + " bytes instead of " + expectedContentLength);
                         }
-                    });
+                        return -1;
+                    }
+
+                    if (maxContentLength != -1 && totalBytesRead + bytesRead > maxContentLength) {
+                        throw abort("Body exceeds " + maxContentLength + " bytes");
+                    }
+
+                    totalBytesRead += bytesRead;
+                    Download.this.bytesRead = totalBytesRead;
+                    unreportedBytes += bytesRead;
+                    schedule = !reportScheduled;
+                    reportScheduled = true;
+                }
+
+                if (schedule && progressListener != ProgressListener.NONE) {
+                    callbackExecutor.execute(progressReport);
                 }
 
                 return bytesRead;
@@ -259,11 +742,24 @@ public final class Download implements Call<ResponseBody> {
      */
     public static final class Builder {
         final Call<ResponseBody> delegate;
+        okhttp3.Call.Factory callFactory;
+        Mirrors mirrors;
+        Executor stripeExecutor;
+        HedgePolicy hedgePolicy;
         Executor callbackExecutor;
         Checksum checksum;
         ValidationCallback validationCallback;
         ProgressListener progressListener;
         final List<Filter<?>> filters = new ArrayList<>();
+        final List<Tee> tees = new ArrayList<>();
+        TeePolicy teePolicy;
+        WriteBehind writeBehind;
+        boolean directIo;
+        long offset;
+        final List<HeadValidator> headValidators = new ArrayList<>();
+        int headLength;
+        long maxContentLength;
+        long expectedContentLength;
         Object tag;
         File file;
 
@@ -273,15 +769,31 @@ public final class Download implements Call<ResponseBody> {
             this.checksum = Checksum.NONE;
             this.validationCallback = ValidationCallback.NONE;
             this.progressListener = ProgressListener.NONE;
+            this.teePolicy = TeePolicy.FAIL;
+            this.maxContentLength = -1;
+            this.expectedContentLength = -1;
         }
 
         Builder(Download download) {
-            delegate = download;
+            delegate = download.delegate;
+            callFactory = download.callFactory;
+            mirrors = download.mirrors;
+            stripeExecutor = download.stripeExecutor;
+            hedgePolicy = download.hedgePolicy;
             callbackExecutor = download.callbackExecutor;
             checksum = download.checksum;
             validationCallback = download.validationCallback;
             progressListener = download.progressListener;
             filters.addAll(download.filters);
+            tees.addAll(download.tees);
+            teePolicy = download.teePolicy;
+            writeBehind = download.writeBehind;
+            directIo = download.directIo;
+            offset = download.offset;
+            headValidators.addAll(download.headValidators);
+            headLength = download.headLength;
+            maxContentLength = download.maxContentLength;
+            expectedContentLength = download.expectedContentLength;
             tag = download.tag;
             file = download.file;
         }
@@ -312,6 +824,42 @@ public final class Download implements Call<ResponseBody> {
             return this;
         }
 
+        /**
+         * Add a {@link HeadValidator} called with the headers and the first {@code byteCount} bytes of the body,
+         * before anything is written. The download is aborted if it throws.
+         */
+        public Builder addHeadValidator(int byteCount, HeadValidator headValidator) {
+            if (byteCount < 0) {
+                throw new IllegalArgumentException("byteCount < 0");
+            }
+            this.headValidators.add(Util.checkNotNull(headValidator, "headValidator == null"));
+            this.headLength = Math.max(headLength, byteCount);
+            return this;
+        }
+
+        /**
+         * Abort the download as soon as the body is known to be longer than {@code maxContentLength},
+         * from the {@code Content-Length} header or while streaming.
+         */
+        public Builder maxContentLength(long maxContentLength) {
+            if (maxContentLength < 0) {
+                throw new IllegalArgumentException("maxContentLength < 0");
+            }
+            this.maxContentLength = maxContentLength;
+            return this;
+        }
+
+        /**
+         * Abort the download as soon as the body is known not to be {@code expectedContentLength} bytes long.
+         */
+        public Builder expectedContentLength(long expectedContentLength) {
+            if (expectedContentLength < 0) {
+                throw new IllegalArgumentException("expectedContentLength < 0");
+            }
+            this.expectedContentLength = expectedContentLength;
+            return this;
+        }
+
         /**
          * Add filter for stream modification.
          */
@@ -328,10 +876,83 @@ public final class Download implements Call<ResponseBody> {
             return this;
         }
 
+        /**
+         * Also write the body to {@code file}, through its own {@code filters}.
+         * The body is read once and shared between all the targets.
+         */
+        public Builder alsoTo(File file, Filter<?>... filters) {
+            this.tees.add(new Tee(file, filters));
+            return this;
+        }
+
+        /**
+         * Set how failures of the targets added with {@link #alsoTo} are handled.
+         */
+        public Builder teePolicy(TeePolicy teePolicy) {
+            this.teePolicy = Util.checkNotNull(teePolicy, "teePolicy == null");
+            return this;
+        }
+
+        /**
+         * Download from the best of {@code mirrors} instead of the original URL, failing over to
+         * another mirror for the remaining bytes when one errors or stalls. The original request
+         * method and headers are kept.
+         */
+        public Builder mirrors(Mirrors mirrors) {
+            this.mirrors = Util.checkNotNull(mirrors, "mirrors == null");
+            this.stripeExecutor = null;
+            return this;
+        }
+
+        /**
+         * Like {@link #mirrors(Mirrors)}, but the body is split in ranges downloaded from several mirrors
+         * at once on {@code stripeExecutor}, sized in proportion to the measured throughput of each mirror.
+         * A range whose mirror errors or stalls continues on another mirror. The executor should run
+         * a task per mirror concurrently.
+         * <p>
+         * Striping needs a known {@code Content-Length} of at least two ranges of 1 MiB, and writes the
+         * file in place: downloads with filters, additional targets, write-behind, direct I/O or a resume
+         * offset are read in order as with {@link #mirrors(Mirrors)}. The checksum is computed from the
+         * file once every range is written, and {@link Download#openChannel()} readers only see the first
+         * range until then.
+         */
+        public Builder mirrors(Mirrors mirrors, Executor stripeExecutor) {
+            this.mirrors = Util.checkNotNull(mirrors, "mirrors == null");
+            this.stripeExecutor = Util.checkNotNull(stripeExecutor, "stripeExecutor == null");
+            return this;
+        }
+
+        /**
+         * Write the file from the {@link WriteBehind} writers instead of the thread reading the body.
+         */
+        public Builder writeBehind(WriteBehind writeBehind) {
+            this.writeBehind = Util.checkNotNull(writeBehind, "writeBehind == null");
+            return this;
+        }
+
+        /**
+         * Write the files with direct I/O, bypassing the page cache.
+         * Falls back to regular writes forced to disk periodically where direct I/O is not supported,
+         * and when appending to a resumed download since direct writes must start at an aligned offset.
+         */
+        public Builder directIo(boolean directIo) {
+            this.directIo = directIo;
+            return this;
+        }
+
+        /**
+         * Send a second request when the response is late according to {@code hedgePolicy}.
+         * The first response is written, the other request is canceled.
+         */
+        public Builder hedge(HedgePolicy hedgePolicy) {
+            this.hedgePolicy = Util.checkNotNull(hedgePolicy, "hedgePolicy == null");
+            return this;
+        }
+
         /**
          * The {@link Download} tag.
          */
-        public Builder tag(Objects tag) {
+        public Builder tag(Object tag) {
             this.tag = tag;
             return this;
         }
@@ -341,7 +962,36 @@ public final class Download implements Call<ResponseBody> {
          */
         public Download to(File file) {
             this.file = Util.checkNotNull(file, "file == null");
+
+            if (offset > 0 && !filters.isEmpty()) {
+                throw new IllegalStateException("Filtered downloads cannot be resumed.");
+            }
+            // The additional targets are written from the start, they would only get the rest of the body.
+            if (offset > 0 && !tees.isEmpty()) {
+                throw new IllegalStateException("Downloads with additional targets cannot be resumed.");
+            }
+
+            if (mirrors != null && callFactory == null) {
+                throw new IllegalStateException("Mirrors require a Download.Builder created by Retrofit.");
+            }
+
             return new Download(this);
         }
+
+        /**
+         * Publish the body instead of writing it to a file, see {@link BodyPublisher}. The checksum,
+         * validation, progress and length checks apply as for a file; filters, additional targets,
+         * write-behind and direct I/O are not supported.
+         */
+        public Publisher<ByteBuffer> toPublisher() {
+            if (!filters.isEmpty() || !tees.isEmpty() || writeBehind != null || directIo) {
+                throw new IllegalStateException("Publishers don't support filters, targets, write-behind or direct I/O.");
+            }
+            if (mirrors != null && callFactory == null) {
+                throw new IllegalStateException("Mirrors require a Download.Builder created by Retrofit.");
+            }
+
+            return new BodyPublisher(new Download(this));
+        }
     }
 }
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import retrofit2.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the files of a manifest, minimizing the time until the last one completes.
+ * <p>
+ * Entries are sorted by size. All connections but one take the largest remaining file, so the big files
+ * don't start last, while the remaining connection takes the smallest ones so that they don't queue behind
+ * the big files. Files already present with the expected checksum are skipped.
+ * <p>
+ * Each connection runs on its own thread, {@link Listener} is invoked from these threads.
+ */
+public final class DownloadBatch {
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public enum Status {
+        DOWNLOADED, SKIPPED, FAILED, CANCELED
+    }
+
+    public interface Listener {
+        Listener NONE = new Listener() {
+            @Override
+            public void onProgress(DownloadBatch batch, long bytesCompleted, long totalBytes, long etaMillis) {
+            }
+        };
+
+        /**
+         * {@code etaMillis} is -1 until it can be estimated.
+         */
+        void onProgress(DownloadBatch batch, long bytesCompleted, long totalBytes, long etaMillis);
+    }
+
+    /**
+     * A file of the manifest. {@code size} is -1 if unknown, {@code hash} the expected hex {@code checksum},
+     * or null with {@link Checksum#NONE}.
+     */
+    public static final class Entry {
+        final HttpUrl url;
+        final File file;
+        final long size;
+        final Checksum checksum;
+        final String hash;
+
+        public Entry(HttpUrl url, File file, long size, Checksum checksum, String hash) {
+            this.url = Util.checkNotNull(url, "url == null");
+            this.file = Util.checkNotNull(file, "file == null");
+            this.size = size;
+            this.checksum = Util.checkNotNull(checksum, "checksum == null");
+            this.hash = hash;
+
+            if ((checksum == Checksum.NONE) != (hash == null)) {
+                throw new IllegalArgumentException("hash must be set with a checksum, and only then.");
+            }
+        }
+
+        public HttpUrl url() {
+            return url;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public Checksum checksum() {
+            return checksum;
+        }
+
+        public String hash() {
+            return hash;
+        }
+    }
+
+    public static final class Result {
+        final Entry entry;
+        final Status status;
+        final long bytes;
+        final long millis;
+        final Throwable failure;
+
+        Result(Entry entry, Status status, long bytes, long millis, Throwable failure) {
+            this.entry = entry;
+            this.status = status;
+            this.bytes = bytes;
+            this.millis = millis;
+            this.failure = failure;
+        }
+
+        public Entry entry() {
+            return entry;
+        }
+
+        public Status status() {
+            return status;
+        }
+
+        /**
+         * Bytes downloaded.
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Time spent on the entry, checking the local file included.
+         */
+        public long millis() {
+            return millis;
+        }
+
+        /**
+         * The cause of a {@link Status#FAILED} entry.
+         */
+        public Throwable failure() {
+            return failure;
+        }
+    }
+
+    /**
+     * Start downloading {@code entries} with at most {@code maxConnections} at a time.
+     */
+    public static DownloadBatch start(okhttp3.Call.Factory callFactory, List<Entry> entries, int maxConnections,
+                                      Listener listener) {
+        Util.checkNotNull(callFactory, "callFactory == null");
+        Util.checkNotNull(entries, "entries == null");
+        Util.checkNotNull(listener, "listener == null");
+
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections <= 0");
+        }
+
+        DownloadBatch batch = new DownloadBatch(callFactory, entries, listener);
+        int workers = Math.min(maxConnections, Math.max(entries.size(), 1));
+
+        for (int i = 0; i < workers; i++) {
+            // The last connection backfills with the smallest files.
+            boolean backfill = workers > 1 && i == workers - 1;
+            Thread thread = new Thread(batch.new Worker(backfill), "DownloadBatch worker " + i);
+            thread.setDaemon(true);
+            batch.workers.add(thread);
+        }
+
+        for (Thread worker : batch.workers) {
+            worker.start();
+        }
+
+        return batch;
+    }
+
+    private final okhttp3.Call.Factory callFactory;
+    private final List<Entry> entries;
+    private final Listener listener;
+    private final Deque<Entry> plan = new ArrayDeque<>();
+    private final Map<Entry, Result> results = new IdentityHashMap<>();
+    private final Set<Download> running = Collections.newSetFromMap(new IdentityHashMap<Download, Boolean>());
+    private final List<Thread> workers = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    private long totalBytes;
+    private long bytesCompleted;
+    private long lastProgressNanos;
+    private boolean canceled;
+
+    private DownloadBatch(okhttp3.Call.Factory callFactory, List<Entry> entries, Listener listener) {
+        this.callFactory = callFactory;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.listener = listener;
+
+        List<Entry> sorted = new ArrayList<>(this.entries);
+
+        // Largest first, files of unknown size before all the others.
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                long sizeA = a.size == -1 ? Long.MAX_VALUE : a.size;
+                long sizeB = b.size == -1 ? Long.MAX_VALUE : b.size;
+                return sizeA < sizeB ? 1 : sizeA == sizeB ? 0 : -1;
+            }
+        });
+
+        plan.addAll(sorted);
+
+        for (Entry entry : sorted) {
+            totalBytes += Math.max(entry.size, 0);
+        }
+    }
+
+    /**
+     * Wait for all the entries, and return their results in the order of the manifest.
+     */
+    public List<Result> await() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        synchronized (this) {
+            List<Result> list = new ArrayList<>(entries.size());
+
+            for (Entry entry : entries) {
+                list.add(results.get(entry));
+            }
+
+            return Collections.unmodifiableList(list);
+        }
+    }
+
+    /**
+     * Cancel the running downloads, the entries not completed are {@link Status#CANCELED}.
+     */
+    public synchronized void cancel() {
+        canceled = true;
+
+        for (Download download : running) {
+            download.cancel();
+        }
+    }
+
+    /**
+     * Bytes to download, excluding skipped and failed files. Files of unknown size are counted once downloaded.
+     */
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long bytesCompleted() {
+        return bytesCompleted;
+    }
+
+    /**
+     * Estimated time until the batch completes, from the throughput so far, or -1.
+     */
+    public synchronized long etaMillis() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        if (bytesCompleted == 0 || elapsedNanos == 0) {
+            return -1;
+        }
+
+        double bytesPerNano = (double) bytesCompleted / elapsedNanos;
+        return TimeUnit.NANOSECONDS.toMillis((long) (Math.max(totalBytes - bytesCompleted, 0) / bytesPerNano));
+    }
+
+    private synchronized Entry next(boolean backfill) {
+        if (canceled) {
+            return null;
+        }
+        return backfill ? plan.pollLast() : plan.pollFirst();
+    }
+
+    private Result process(Entry entry) {
+        long start = System.nanoTime();
+
+        if (matches(entry)) {
+            synchronized (this) {
+                totalBytes -= Math.max(entry.size, 0);
+            }
+            progress(true);
+            return new Result(entry, Status.SKIPPED, 0, millisSince(start), null);
+        }
+
+        final Entry downloaded = entry;
+        // Bytes of this entry in bytesCompleted, -1 once they were dropped because it failed.
+        final AtomicLong counted = new AtomicLong();
+        Download.Builder builder = new Download.Builder(new RequestCall(callFactory,
+                new Request.Builder().url(entry.url).build()))
+                .progress(new ProgressListener() {
+                    @Override
+                    public void onProgress(Download download, long bytesRead, long totalBytesRead, long contentLength) {
+                        synchronized (DownloadBatch.this) {
+                            if (counted.get() == -1) {
+                                return;
+                            }
+                            counted.addAndGet(bytesRead);
+                            bytesCompleted += bytesRead;
+                        }
+                        progress(false);
+                    }
+                });
+
+        if (entry.size != -1) {
+            builder.expectedContentLength(entry.size);
+        }
+        if (entry.checksum != Checksum.NONE) {
+            builder.validate(entry.checksum, new ValidationCallback() {
+                @Override
+                public void validate(Download download, String checksum) throws IOException {
+                    if (!downloaded.hash.equalsIgnoreCase(checksum)) {
+                        downloaded.file.delete();
+                        throw new IOException("Checksum mismatch for " + downloaded.url);
+                    }
+                }
+            });
+        }
+
+        Download download = builder.to(entry.file);
+
+        synchronized (this) {
+            if (canceled) {
+                return new Result(entry, Status.CANCELED, 0, millisSince(start), null);
+            }
+            running.add(download);
+        }
+
+        try {
+            Response<ResponseBody> response = download.execute();
+
+            if (!response.isSuccessful()) {
+                Util.closeQuietly(response.errorBody());
+                throw new IOException("HTTP " + response.code() + " for " + entry.url);
+            }
+
+            if (entry.size == -1) {
+                synchronized (this) {
+                    totalBytes += download.bytesRead;
+                }
+            }
+
+            return new Result(entry, Status.DOWNLOADED, download.bytesRead, millisSince(start), null);
+        } catch (Throwable t) {
+            synchronized (this) {
+                if (canceled) {
+                    return new Result(entry, Status.CANCELED, download.bytesRead, millisSince(start), null);
+                }
+
+                // A failed entry is no longer part of the batch's progress.
+                bytesCompleted -= counted.getAndSet(-1);
+                totalBytes -= Math.max(entry.size, 0);
+            }
+            return new Result(entry, Status.FAILED, download.bytesRead, millisSince(start), t);
+        } finally {
+            synchronized (this) {
+                running.remove(download);
+            }
+            progress(true);
+        }
+    }
+
+    /**
+     * Whether the local file already has the expected size and checksum.
+     */
+    private static boolean matches(Entry entry) {
+        if (entry.checksum == Checksum.NONE || !entry.file.isFile()
+                || entry.size != -1 && entry.file.length() != entry.size) {
+            return false;
+        }
+
+        DigestSink digestSink = new DigestSink(new Buffer(), entry.checksum);
+
+        try {
+            digestSink.seed(entry.file, entry.file.length());
+        } catch (IOException e) {
+            return false;
+        }
+
+        return entry.hash.equalsIgnoreCase(digestSink.hash().hex());
+    }
+
+    private void progress(boolean force) {
+        long completed;
+        long total;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+
+            if (!force && now - lastProgressNanos < PROGRESS_INTERVAL_NANOS) {
+                return;
+            }
+
+            lastProgressNanos = now;
+            completed = bytesCompleted;
+            total = totalBytes;
+        }
+
+        listener.onProgress(this, completed, total, etaMillis());
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private final class Worker implements Runnable {
+        private final boolean backfill;
+
+        Worker(boolean backfill) {
+            this.backfill = backfill;
+        }
+
+        @Override
+        public void run() {
+            Entry entry;
+
+            while ((entry = next(backfill)) != null) {
+                Result result = process(entry);
+
+                synchronized (DownloadBatch.this) {
+                    results.put(entry, result);
+                }
+            }
+
+            synchronized (DownloadBatch.this) {
+                // Entries left after a cancel.
+                if (canceled) {
+                    while ((entry = plan.poll()) != null) {
+                        results.put(entry, new Result(entry, Status.CANCELED, 0, 0, null));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -54,6 +54,7 @@ public final class DownloadCallAdapterFactory extends CallAdapter.Factory {
             @Override
             public <R> Download.Builder adapt(Call<R> call) {
                 Download.Builder builder = new Download.Builder((Call<ResponseBody>) call);
+                builder.callFactory = retrofit.callFactory();
 
                 Executor callbackExecutor = retrofit.callbackExecutor();
 
@@ -0,0 +1,483 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * A queue of downloads surviving process restarts.
+ * <p>
+ * Queued downloads are recorded in an append-only journal: request, destination, expected checksum,
+ * tag and bytes completed. When the queue is opened again, unfinished downloads are resumed from
+ * where they stopped, at most {@code maxConcurrency} at a time. The journal is compacted when opened
+ * and whenever finished downloads make up most of it. Downloads that failed are kept in the journal until
+ * they are {@linkplain #retryFailed() retried} or {@linkplain #clearFailed() cleared}.
+ * <p>
+ * Only plain GET downloads without filters, and with a {@link String} tag if any, can be queued.
+ * Callbacks are invoked on the thread completing the download.
+ */
+public final class DownloadQueue implements Closeable {
+    static final long PROGRESS_INTERVAL = 1024 * 1024;
+    private static final int COMPACT_THRESHOLD = 2000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ADD = "ADD";
+    private static final String PROGRESS = "PROGRESS";
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+    private static final String NULL = "~";
+
+    public static DownloadQueue open(File journal, okhttp3.Call.Factory callFactory, int maxConcurrency,
+                                     Callback<ResponseBody> callback) throws IOException {
+        Util.checkNotNull(journal, "journal == null");
+        Util.checkNotNull(callFactory, "callFactory == null");
+        Util.checkNotNull(callback, "callback == null");
+
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+
+        DownloadQueue queue = new DownloadQueue(journal, callFactory, maxConcurrency, callback);
+
+        synchronized (queue) {
+            queue.load();
+            queue.compact();
+            queue.pending.addAll(queue.entries.values());
+            queue.promote();
+        }
+
+        return queue;
+    }
+
+    private final File journal;
+    private final okhttp3.Call.Factory callFactory;
+    private final int maxConcurrency;
+    private final Callback<ResponseBody> callback;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private final Map<Long, Entry> failed = new LinkedHashMap<>();
+    private final Deque<Entry> pending = new ArrayDeque<>();
+    private final Map<Entry, Download> running = new HashMap<>();
+    private Writer writer;
+    private int records;
+    private long nextId;
+    private boolean closed;
+
+    private DownloadQueue(File journal, okhttp3.Call.Factory callFactory, int maxConcurrency,
+                          Callback<ResponseBody> callback) {
+        this.journal = journal;
+        this.callFactory = callFactory;
+        this.maxConcurrency = maxConcurrency;
+        this.callback = callback;
+    }
+
+    /**
+     * Queue {@code download}, which must not have been executed. If {@code expectedChecksum} is not null,
+     * the download fails unless the {@link Download#checksum()} of the file matches.
+     */
+    public synchronized void add(Download download, String expectedChecksum) throws IOException {
+        Util.checkNotNull(download, "download == null");
+
+        if (closed) {
+            throw new IllegalStateException("Closed.");
+        }
+        if (download.isExecuted()) {
+            throw new IllegalStateException("Already executed.");
+        }
+        if (!download.filters.isEmpty() || !download.tees.isEmpty()) {
+            throw new IllegalArgumentException("Downloads with filters or extra targets cannot be queued.");
+        }
+        if (download.tag != null && !(download.tag instanceof String)) {
+            throw new IllegalArgumentException("Only String tags can be queued.");
+        }
+        if (!"GET".equals(download.request().method())) {
+            throw new IllegalArgumentException("Only GET downloads can be queued.");
+        }
+        if (expectedChecksum != null && download.checksum == Checksum.NONE) {
+            throw new IllegalArgumentException("expectedChecksum requires a checksum.");
+        }
+
+        Entry entry = new Entry(nextId++, download.request().url(), download.request().headers(),
+                download.file, download.checksum, expectedChecksum, (String) download.tag);
+
+        append(entry.addRecord());
+        entries.put(entry.id, entry);
+        pending.add(entry);
+        promote();
+    }
+
+    /**
+     * The number of unfinished downloads, running or not.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int runningCount() {
+        return running.size();
+    }
+
+    /**
+     * The destinations of the downloads that failed, including in earlier runs.
+     */
+    public synchronized List<File> failed() {
+        List<File> files = new ArrayList<>(failed.size());
+
+        for (Entry entry : failed.values()) {
+            files.add(entry.file);
+        }
+
+        return files;
+    }
+
+    /**
+     * Queue the failed downloads again, from the start.
+     */
+    public synchronized void retryFailed() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Closed.");
+        }
+
+        for (Iterator<Entry> iterator = failed.values().iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            Entry retry = new Entry(nextId++, entry.url, entry.headers, entry.file, entry.checksum,
+                    entry.expectedChecksum, entry.tag);
+
+            append(DONE + ' ' + entry.id);
+            append(retry.addRecord());
+            iterator.remove();
+            entries.put(retry.id, retry);
+            pending.add(retry);
+        }
+
+        promote();
+    }
+
+    /**
+     * Forget the failed downloads.
+     */
+    public synchronized void clearFailed() throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Closed.");
+        }
+
+        for (Iterator<Entry> iterator = failed.values().iterator(); iterator.hasNext(); ) {
+            append(DONE + ' ' + iterator.next().id);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Stop the queue. Running downloads are canceled and will resume when the queue is opened again.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Download download : running.values()) {
+            download.cancel();
+        }
+        running.clear();
+        Util.closeQuietly(writer);
+    }
+
+    private void promote() {
+        while (!closed && running.size() < maxConcurrency && !pending.isEmpty()) {
+            start(pending.poll());
+        }
+    }
+
+    private void start(final Entry entry) {
+        long offset = Math.min(entry.file.length(), entry.bytesCompleted);
+        Request.Builder request = new Request.Builder().url(entry.url).headers(entry.headers);
+
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+
+        Download.Builder builder = new Download.Builder(new RequestCall(callFactory, request.build()));
+        builder.callFactory = callFactory;
+        builder.offset = offset;
+
+        final Download download = builder
+                .tag(entry.tag)
+                .validate(entry.checksum, new ValidationCallback() {
+                    @Override
+                    public void validate(Download download, String checksum) throws IOException {
+                        if (entry.expectedChecksum != null && !entry.expectedChecksum.equalsIgnoreCase(checksum)) {
+                            throw new IOException("Invalid checksum for " + entry.file);
+                        }
+                    }
+                })
+                .progress(new ProgressListener() {
+                    @Override
+                    public void onProgress(Download download, long bytesRead, long totalBytesRead, long contentLength) {
+                        progress(entry, totalBytesRead);
+                    }
+                })
+                .to(entry.file);
+
+        running.put(entry, download);
+
+        download.enqueue(new Callback<ResponseBody>() {
+            @Override
+            public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                finished(entry, download, response, null);
+            }
+
+            @Override
+            public void onFailure(Call<ResponseBody> call, Throwable t) {
+                finished(entry, download, null, t);
+            }
+        });
+    }
+
+    private synchronized void progress(Entry entry, long bytesCompleted) {
+        if (closed || bytesCompleted - entry.bytesCompleted < PROGRESS_INTERVAL) {
+            return;
+        }
+
+        entry.bytesCompleted = bytesCompleted;
+
+        try {
+            append(PROGRESS + ' ' + entry.id + ' ' + bytesCompleted);
+        } catch (IOException ignored) {
+            // At worst the download resumes from an earlier offset.
+        }
+    }
+
+    private void finished(Entry entry, Download download, Response<ResponseBody> response, Throwable failure) {
+        synchronized (this) {
+            if (closed || running.get(entry) != download) {
+                return;
+            }
+
+            running.remove(entry);
+
+            if (response != null && response.code() == 416 && download.offset > 0) {
+                // Nothing left to resume from, start over.
+                Util.closeQuietly(response.errorBody());
+                entry.bytesCompleted = 0;
+                pending.addFirst(entry);
+                promote();
+                return;
+            }
+
+            entries.remove(entry.id);
+            boolean successful = failure == null && response.isSuccessful();
+
+            if (!successful) {
+                failed.put(entry.id, entry);
+            }
+
+            try {
+                append((successful ? DONE : FAILED) + ' ' + entry.id);
+
+                if (records > COMPACT_THRESHOLD && records > 4 * (entries.size() + failed.size())) {
+                    compact();
+                }
+            } catch (IOException ignored) {
+                // At worst the download is done again.
+            }
+
+            promote();
+        }
+
+        if (failure == null) {
+            callback.onResponse(download, response);
+        } else {
+            callback.onFailure(download, failure);
+        }
+    }
+
+    private void append(String record) throws IOException {
+        writer.write(record);
+        writer.write('\n');
+        writer.flush();
+        records++;
+    }
+
+    private void load() throws IOException {
+        if (!journal.exists()) {
+            return;
+        }
+
+        String contents = new String(Files.readAllBytes(journal.toPath()), UTF_8);
+
+        // A crash can leave the last record unterminated, and a cut record may still parse: ignore it.
+        for (String line : contents.substring(0, contents.lastIndexOf('\n') + 1).split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] fields = line.split(" ", -1);
+
+            try {
+                if (ADD.equals(fields[0])) {
+                    Entry entry = Entry.parse(fields);
+                    entries.put(entry.id, entry);
+                    nextId = Math.max(nextId, entry.id + 1);
+                } else if (PROGRESS.equals(fields[0])) {
+                    Entry entry = entries.get(Long.parseLong(fields[1]));
+
+                    if (entry != null) {
+                        entry.bytesCompleted = Long.parseLong(fields[2]);
+                    }
+                } else if (DONE.equals(fields[0])) {
+                    entries.remove(Long.parseLong(fields[1]));
+                    failed.remove(Long.parseLong(fields[1]));
+                } else if (FAILED.equals(fields[0])) {
+                    Entry entry = entries.remove(Long.parseLong(fields[1]));
+
+                    if (entry != null) {
+                        failed.put(entry.id, entry);
+                    }
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt journal record: " + line, e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with the unfinished and failed downloads only.
+     */
+    private void compact() throws IOException {
+        Util.closeQuietly(writer);
+
+        File compacted = new File(journal.getPath() + ".tmp");
+        Writer compactedWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), UTF_8));
+
+        try {
+            for (Entry entry : entries.values()) {
+                compactedWriter.write(entry.addRecord());
+                compactedWriter.write('\n');
+
+                if (entry.bytesCompleted > 0) {
+                    compactedWriter.write(PROGRESS + ' ' + entry.id + ' ' + entry.bytesCompleted);
+                    compactedWriter.write('\n');
+                }
+            }
+
+            for (Entry entry : failed.values()) {
+                compactedWriter.write(entry.addRecord());
+                compactedWriter.write('\n');
+                compactedWriter.write(FAILED + ' ' + entry.id);
+                compactedWriter.write('\n');
+            }
+        } finally {
+            compactedWriter.close();
+        }
+
+        Files.move(compacted.toPath(), journal.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), UTF_8));
+        records = 2 * (entries.size() + failed.size());
+    }
+
+    static String encode(String value) {
+        try {
+            return value == null ? NULL : URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static String decode(String value) {
+        try {
+            return NULL.equals(value) ? null : URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static final class Entry {
+        final long id;
+        final HttpUrl url;
+        final Headers headers;
+        final File file;
+        final Checksum checksum;
+        final String expectedChecksum;
+        final String tag;
+        long bytesCompleted;
+
+        Entry(long id, HttpUrl url, Headers headers, File file, Checksum checksum, String expectedChecksum,
+              String tag) {
+            this.id = id;
+            this.url = url;
+            this.headers = headers;
+            this.file = file;
+            this.checksum = checksum;
+            this.expectedChecksum = expectedChecksum;
+            this.tag = tag;
+        }
+
+        static Entry parse(String[] fields) {
+            if (fields.length < 7 || (fields.length - 7) % 2 != 0) {
+                throw new IllegalArgumentException("Invalid record: " + Arrays.toString(fields));
+            }
+
+            Headers.Builder headers = new Headers.Builder();
+
+            for (int i = 7; i + 1 < fields.length; i += 2) {
+                headers.add(decode(fields[i]), decode(fields[i + 1]));
+            }
+
+            HttpUrl url = HttpUrl.parse(decode(fields[2]));
+
+            if (url == null) {
+                throw new IllegalArgumentException("Invalid URL: " + fields[2]);
+            }
+
+            return new Entry(Long.parseLong(fields[1]), url, headers.build(), new File(decode(fields[3])),
+                    Checksum.valueOf(fields[4]), decode(fields[5]), decode(fields[6]));
+        }
+
+        String addRecord() {
+            StringBuilder record = new StringBuilder()
+                    .append(ADD).append(' ').append(id)
+                    .append(' ').append(encode(url.toString()))
+                    .append(' ').append(encode(file.getPath()))
+                    .append(' ').append(checksum.name())
+                    .append(' ').append(encode(expectedChecksum))
+                    .append(' ').append(encode(tag));
+
+            for (int i = 0; i < headers.size(); i++) {
+                record.append(' ').append(encode(headers.name(i)))
+                        .append(' ').append(encode(headers.value(i)));
+            }
+
+            return record.toString();
+        }
+    }
+}
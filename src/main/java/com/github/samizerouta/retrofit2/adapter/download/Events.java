@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+/**
+ * Diagnostic events, recorded with Java Flight Recorder when available.
+ * {@code begin} methods return null when the event is disabled, {@code commit} methods ignore null.
+ */
+interface Events {
+    Events NONE = new Events() {
+        @Override
+        public Object beginDownload() {
+            return null;
+        }
+
+        @Override
+        public void commitDownload(Object event, Download download, long bytes, String outcome) {
+        }
+
+        @Override
+        public Object beginChunk() {
+            return null;
+        }
+
+        @Override
+        public void commitChunk(Object event, String operation, long bytes) {
+        }
+
+        @Override
+        public void commitChecksum(Checksum checksum, long bytes, long hashingNanos) {
+        }
+
+        @Override
+        public Object beginValidation() {
+            return null;
+        }
+
+        @Override
+        public void commitValidation(Object event, String validation) {
+        }
+
+        @Override
+        public Object beginFilterChain() {
+            return null;
+        }
+
+        @Override
+        public void commitFilterChain(Object event, java.io.File file, int filters) {
+        }
+    };
+
+    Events INSTANCE = Loader.load();
+
+    Object beginDownload();
+
+    void commitDownload(Object event, Download download, long bytes, String outcome);
+
+    Object beginChunk();
+
+    void commitChunk(Object event, String operation, long bytes);
+
+    void commitChecksum(Checksum checksum, long bytes, long hashingNanos);
+
+    Object beginValidation();
+
+    void commitValidation(Object event, String validation);
+
+    Object beginFilterChain();
+
+    void commitFilterChain(Object event, java.io.File file, int filters);
+
+    final class Loader {
+        private Loader() {
+        }
+
+        static Events load() {
+            try {
+                Class<?> cls = Class.forName("com.github.samizerouta.retrofit2.adapter.download.JfrEvents");
+                return (Events) cls.getDeclaredConstructor().newInstance();
+            } catch (Throwable ignored) {
+                // Not built with Flight Recorder support, or not running on a JVM having it.
+                return NONE;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When to send a second, hedged request for a {@link Download} whose response is late.
+ * The first response wins and the other request is canceled.
+ * <p>
+ * Share an instance between downloads to collect statistics, and for the percentile policy to learn
+ * the usual time to response.
+ * <p>
+ * The times recorded are those of the original requests. When the hedge wins, the original request
+ * is canceled and the time it had been waiting is recorded: a lower bound of its time to response,
+ * but at least the hedging delay, so that won races don't pull the percentile down.
+ */
+public final class HedgePolicy {
+    private static final int SAMPLES = 128;
+    private static final int MIN_SAMPLES = 16;
+
+    /**
+     * Hedge when no response arrived after {@code delay}.
+     */
+    public static HedgePolicy after(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay < 0");
+        }
+        return new HedgePolicy(unit.toNanos(delay), -1);
+    }
+
+    /**
+     * Hedge when no response arrived after the {@code percentile} of the recent times to response.
+     * {@code initialDelay} is used until enough responses have been observed.
+     */
+    public static HedgePolicy atPercentile(double percentile, long initialDelay, TimeUnit unit) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in ]0, 100]");
+        }
+        if (initialDelay < 0) {
+            throw new IllegalArgumentException("initialDelay < 0");
+        }
+        return new HedgePolicy(unit.toNanos(initialDelay), percentile);
+    }
+
+    private final long delayNanos;
+    private final double percentile;
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount;
+    private long hedged;
+    private long won;
+
+    private HedgePolicy(long delayNanos, double percentile) {
+        this.delayNanos = delayNanos;
+        this.percentile = percentile;
+    }
+
+    /**
+     * Number of hedged requests sent.
+     */
+    public synchronized long hedged() {
+        return hedged;
+    }
+
+    /**
+     * Number of hedged requests whose response arrived first.
+     */
+    public synchronized long won() {
+        return won;
+    }
+
+    synchronized long delayNanos() {
+        if (percentile == -1 || sampleCount < MIN_SAMPLES) {
+            return delayNanos;
+        }
+
+        int size = Math.min(sampleCount, SAMPLES);
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        return sorted[Math.max((int) Math.ceil(percentile / 100 * size) - 1, 0)];
+    }
+
+    synchronized void recordResponse(long nanos, boolean hedge) {
+        samples[sampleCount++ % SAMPLES] = nanos;
+
+        if (sampleCount == 2 * SAMPLES) {
+            sampleCount = SAMPLES;
+        }
+
+        if (hedge) {
+            won++;
+        }
+    }
+
+    /**
+     * The last recorded times to response, in no particular order.
+     */
+    synchronized long[] samples() {
+        return Arrays.copyOf(samples, Math.min(sampleCount, SAMPLES));
+    }
+
+    synchronized void recordHedge() {
+        hedged++;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Call} sending a clone of its delegate when the response is late, according to a {@link HedgePolicy}.
+ * The first response wins, the other call is canceled and its response discarded.
+ */
+final class HedgedCall implements Call<ResponseBody> {
+    // Unlike a Timer, the executor keeps running when a task throws.
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HedgedCall");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    final Call<ResponseBody> delegate;
+    final HedgePolicy policy;
+    private volatile Call<ResponseBody> hedge;
+    private volatile boolean canceled;
+
+    HedgedCall(Call<ResponseBody> delegate, HedgePolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    @Override
+    public Response<ResponseBody> execute() throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Response<ResponseBody>> response = new AtomicReference<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        enqueue(new Callback<ResponseBody>() {
+            @Override
+            public void onResponse(Call<ResponseBody> call, Response<ResponseBody> r) {
+                response.set(r);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<ResponseBody> call, Throwable t) {
+                failure.set(t);
+                latch.countDown();
+            }
+        });
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        Throwable t = failure.get();
+
+        if (t == null) {
+            return response.get();
+        } else if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException(t);
+    }
+
+    @Override
+    public void enqueue(Callback<ResponseBody> callback) {
+        final Race race = new Race(callback);
+
+        race.timer = TIMER.schedule(race, policy.delayNanos(), TimeUnit.NANOSECONDS);
+        delegate.enqueue(race.contender(false));
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return delegate.isExecuted();
+    }
+
+    @Override
+    public void cancel() {
+        canceled = true;
+        delegate.cancel();
+
+        Call<ResponseBody> call = hedge;
+
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @SuppressWarnings("CloneDoesntCallSuperClone")
+    @Override
+    public HedgedCall clone() {
+        return new HedgedCall(delegate.clone(), policy);
+    }
+
+    @Override
+    public Request request() {
+        return delegate.request();
+    }
+
+    /**
+     * Races the delegate against the hedge, which is sent when the timer fires.
+     */
+    private final class Race implements Runnable {
+        private final Callback<ResponseBody> callback;
+        private final long start = System.nanoTime();
+        volatile ScheduledFuture<?> timer;
+        private boolean finished;
+        private int pending = 1;
+
+        Race(Callback<ResponseBody> callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            Call<ResponseBody> call;
+
+            synchronized (this) {
+                if (finished || canceled) {
+                    return;
+                }
+                call = delegate.clone();
+                hedge = call;
+                pending++;
+            }
+
+            policy.recordHedge();
+            Callback<ResponseBody> contender = contender(true);
+
+            try {
+                call.enqueue(contender);
+            } catch (RuntimeException e) {
+                contender.onFailure(call, e);
+            }
+        }
+
+        void cancelTimer() {
+            ScheduledFuture<?> timer = this.timer;
+
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+
+        Callback<ResponseBody> contender(final boolean isHedge) {
+            return new Callback<ResponseBody>() {
+                @Override
+                public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                    synchronized (Race.this) {
+                        if (finished) {
+                            Util.closeQuietly(response.body(), response.errorBody());
+                            return;
+                        }
+                        finished = true;
+                    }
+
+                    cancelTimer();
+
+                    if (isHedge) {
+                        delegate.cancel();
+                    } else if (hedge != null) {
+                        hedge.cancel();
+                    }
+
+                    // The time of the original request, even when the hedge won: see HedgePolicy.
+                    policy.recordResponse(System.nanoTime() - start, isHedge);
+                    callback.onResponse(HedgedCall.this, response);
+                }
+
+                @Override
+                public void onFailure(Call<ResponseBody> call, Throwable t) {
+                    synchronized (Race.this) {
+                        // Wait for the other request, if any, before failing.
+                        if (finished || --pending > 0) {
+                            return;
+                        }
+                        finished = true;
+                    }
+
+                    cancelTimer();
+                    callback.onFailure(HedgedCall.this, t);
+                }
+            };
+        }
+    }
+}
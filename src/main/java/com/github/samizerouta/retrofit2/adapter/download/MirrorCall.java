@@ -0,0 +1,533 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.*;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Call} downloading from the best of several {@link Mirrors}.
+ * When a mirror fails or stalls in the middle of the body, the remaining range is requested
+ * from the next mirror and the body continues seamlessly. The body can also be split in
+ * {@link Stripe}s downloaded from several mirrors at once.
+ */
+final class MirrorCall implements Call<ResponseBody> {
+    final okhttp3.Call.Factory callFactory;
+    final Request template;
+    final Mirrors mirrors;
+
+    private boolean executed;
+    private volatile boolean canceled;
+    private final Set<okhttp3.Call> calls = Collections.newSetFromMap(new ConcurrentHashMap<okhttp3.Call, Boolean>());
+
+    MirrorCall(okhttp3.Call.Factory callFactory, Request template, Mirrors mirrors) {
+        this.callFactory = callFactory;
+        this.template = template;
+        this.mirrors = mirrors;
+    }
+
+    @Override
+    public Response<ResponseBody> execute() throws IOException {
+        markExecuted();
+
+        Set<Mirrors.Mirror> failed = newFailedSet();
+        Attempt attempt = open(0, -1, null, failed);
+
+        if (!attempt.response.isSuccessful()) {
+            return Response.error(attempt.response.body(), attempt.response);
+        }
+
+        return Response.<ResponseBody>success(new FailoverBody(attempt, failed), attempt.response);
+    }
+
+    @Override
+    public void enqueue(Callback<ResponseBody> callback) {
+        markExecuted();
+        enqueue(mirrors.ranked().iterator(), newFailedSet(), null, null, callback);
+    }
+
+    @Override
+    public synchronized boolean isExecuted() {
+        return executed;
+    }
+
+    @Override
+    public void cancel() {
+        canceled = true;
+
+        for (okhttp3.Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @SuppressWarnings("CloneDoesntCallSuperClone")
+    @Override
+    public MirrorCall clone() {
+        return new MirrorCall(callFactory, template, mirrors);
+    }
+
+    @Override
+    public Request request() {
+        return template;
+    }
+
+    private synchronized void markExecuted() {
+        if (executed) {
+            throw new IllegalStateException("Already executed.");
+        }
+        executed = true;
+    }
+
+    private static Set<Mirrors.Mirror> newFailedSet() {
+        // Shared by the stripes of a body.
+        return Collections.newSetFromMap(new ConcurrentHashMap<Mirrors.Mirror, Boolean>());
+    }
+
+    private okhttp3.Call newCall(Request request) {
+        okhttp3.Call call = callFactory.newCall(request);
+        calls.add(call);
+
+        if (canceled) {
+            call.cancel();
+        }
+
+        return call;
+    }
+
+    private void enqueue(final Iterator<Mirrors.Mirror> iterator, final Set<Mirrors.Mirror> failed,
+                         final IOException failure, final okhttp3.Response errorResponse,
+                         final Callback<ResponseBody> callback) {
+        if (canceled || !iterator.hasNext()) {
+            if (errorResponse != null && !canceled) {
+                callback.onResponse(this, Response.<ResponseBody>error(errorResponse.body(), errorResponse));
+            } else {
+                if (errorResponse != null) {
+                    Util.closeQuietly(errorResponse.body());
+                }
+                callback.onFailure(this, failure != null ? failure : new IOException("Canceled"));
+            }
+            return;
+        }
+
+        final Mirrors.Mirror mirror = iterator.next();
+        final long start = System.nanoTime();
+        okhttp3.Call call = newCall(request(mirror, 0, -1));
+
+        call.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(okhttp3.Call call, IOException e) {
+                mirror.recordFailure();
+                failed.add(mirror);
+                enqueue(iterator, failed, e, errorResponse, callback);
+            }
+
+            @Override
+            public void onResponse(okhttp3.Call call, okhttp3.Response response) {
+                mirror.recordResponse(System.nanoTime() - start);
+
+                if (response.code() == 200) {
+                    if (errorResponse != null) {
+                        Util.closeQuietly(errorResponse.body());
+                    }
+                    Attempt attempt = new Attempt(mirror, response, response.body().source());
+                    callback.onResponse(MirrorCall.this,
+                            Response.<ResponseBody>success(new FailoverBody(attempt, failed), response));
+                } else if (response.isSuccessful()) {
+                    // Another 2xx has no usable body, it is a failure of the mirror rather than an HTTP error.
+                    Util.closeQuietly(response.body());
+                    mirror.recordFailure();
+                    failed.add(mirror);
+                    enqueue(iterator, failed, unexpected(response), errorResponse, callback);
+                } else {
+                    mirror.recordFailure();
+                    failed.add(mirror);
+                    if (errorResponse != null) {
+                        Util.closeQuietly(errorResponse.body());
+                    }
+                    enqueue(iterator, failed, failure, response, callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * Open the body from {@code offset} to {@code end} (exclusive, -1 for the end of the body), on
+     * {@code preferred} if not null then on the best mirror not in {@code failed}.
+     * When nothing has been read yet, the last HTTP error is returned if every mirror failed.
+     */
+    Attempt open(long offset, long end, Mirrors.Mirror preferred, Set<Mirrors.Mirror> failed) throws IOException {
+        IOException failure = null;
+        okhttp3.Response errorResponse = null;
+        List<Mirrors.Mirror> ranked = mirrors.ranked();
+
+        if (preferred != null) {
+            ranked.remove(preferred);
+            ranked.add(0, preferred);
+        }
+
+        for (Mirrors.Mirror mirror : ranked) {
+            if (failed.contains(mirror)) {
+                continue;
+            }
+
+            if (canceled) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            okhttp3.Response response;
+
+            try {
+                response = newCall(request(mirror, offset, end)).execute();
+            } catch (IOException e) {
+                mirror.recordFailure();
+                failed.add(mirror);
+                failure = e;
+                continue;
+            }
+
+            mirror.recordResponse(System.nanoTime() - start);
+
+            try {
+                BufferedSource source = body(response, offset, end);
+
+                if (source != null) {
+                    if (errorResponse != null) {
+                        Util.closeQuietly(errorResponse.body());
+                    }
+                    return new Attempt(mirror, response, source);
+                }
+            } catch (IOException e) {
+                Util.closeQuietly(response.body());
+                mirror.recordFailure();
+                failed.add(mirror);
+                failure = e;
+                continue;
+            }
+
+            mirror.recordFailure();
+            failed.add(mirror);
+
+            if (response.isSuccessful()) {
+                // Another 2xx has no usable body, it is a failure of the mirror rather than an HTTP error.
+                Util.closeQuietly(response.body());
+                failure = unexpected(response);
+                continue;
+            }
+
+            if (errorResponse != null) {
+                Util.closeQuietly(errorResponse.body());
+            }
+            errorResponse = response;
+        }
+
+        if (canceled) {
+            if (errorResponse != null) {
+                Util.closeQuietly(errorResponse.body());
+            }
+            throw new IOException("Canceled");
+        }
+
+        if (errorResponse != null && offset == 0) {
+            return new Attempt(null, errorResponse, null);
+        }
+
+        if (errorResponse != null) {
+            Util.closeQuietly(errorResponse.body());
+        }
+
+        throw failure != null ? failure : new IOException("All mirrors failed");
+    }
+
+    private static IOException unexpected(okhttp3.Response response) {
+        return new IOException("Unexpected HTTP " + response.code() + " from " + response.request().url());
+    }
+
+    private Request request(Mirrors.Mirror mirror, long offset, long end) {
+        Request.Builder builder = template.newBuilder().url(mirror.url);
+
+        // Byte offsets must refer to the bytes on the wire, disable transparent decompression.
+        if (template.header("Accept-Encoding") == null) {
+            builder.header("Accept-Encoding", "identity");
+        }
+
+        if (end != -1) {
+            builder.header("Range", "bytes=" + offset + "-" + (end - 1));
+        } else if (offset > 0) {
+            builder.header("Range", "bytes=" + offset + "-");
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * The body source positioned at {@code offset}, or null if the response is unusable.
+     */
+    private static BufferedSource body(okhttp3.Response response, long offset, long end) throws IOException {
+        if (response.code() == 200) {
+            BufferedSource source = response.body().source();
+            source.skip(offset);
+            return source;
+        }
+
+        if (response.code() == 206 && (offset > 0 || end != -1)) {
+            String contentRange = response.header("Content-Range");
+
+            if (contentRange != null && contentRange.startsWith("bytes " + offset + "-")) {
+                return response.body().source();
+            }
+
+            Util.closeQuietly(response.body());
+            throw new IOException("Unexpected Content-Range: " + contentRange);
+        }
+
+        return null;
+    }
+
+    static final class Attempt {
+        final Mirrors.Mirror mirror;
+        final okhttp3.Response response;
+        final BufferedSource source;
+
+        Attempt(Mirrors.Mirror mirror, okhttp3.Response response, BufferedSource source) {
+            this.mirror = mirror;
+            this.response = response;
+            this.source = source;
+        }
+    }
+
+    /**
+     * A range of the body assigned to a mirror.
+     */
+    static final class Stripe {
+        final Mirrors.Mirror mirror;
+        final long start;
+        final long end;
+
+        Stripe(Mirrors.Mirror mirror, long start, long end) {
+            this.mirror = mirror;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    final class FailoverBody extends ResponseBody {
+        private final ResponseBody first;
+        private final Mirrors.Mirror firstMirror;
+        private final Set<Mirrors.Mirror> failed;
+        private final BufferedSource source;
+
+        FailoverBody(Attempt attempt, Set<Mirrors.Mirror> failed) {
+            this.first = attempt.response.body();
+            this.firstMirror = attempt.mirror;
+            this.failed = failed;
+            this.source = Okio.buffer(new FailoverSource(attempt, failed, 0, -1, null));
+        }
+
+        @Override
+        public MediaType contentType() {
+            return first.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return first.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+
+        /**
+         * Split the {@code length} bytes of the body between the healthy mirrors, in proportion to their
+         * measured throughput. Mirrors not measured yet count as average. The slowest mirrors are left out
+         * while a stripe would be shorter than {@code minLength}. The first stripe starts on the mirror
+         * that sent this body, it is read from {@link #source()}.
+         */
+        List<Stripe> stripes(long length, long minLength) {
+            List<Mirrors.Mirror> healthy = new ArrayList<>();
+
+            for (Mirrors.Mirror mirror : mirrors.ranked()) {
+                if (!failed.contains(mirror)) {
+                    healthy.add(mirror);
+                }
+            }
+
+            healthy.remove(firstMirror);
+            healthy.add(0, firstMirror);
+
+            while (true) {
+                double[] weights = new double[healthy.size()];
+                double measured = 0;
+                int measuredCount = 0;
+
+                for (int i = 0; i < weights.length; i++) {
+                    weights[i] = healthy.get(i).bytesPerSecond();
+
+                    if (weights[i] > 0) {
+                        measured += weights[i];
+                        measuredCount++;
+                    }
+                }
+
+                double average = measuredCount == 0 ? 1 : measured / measuredCount;
+                double total = 0;
+                int smallest = 0;
+
+                for (int i = 0; i < weights.length; i++) {
+                    if (weights[i] == 0) {
+                        weights[i] = average;
+                    }
+                    total += weights[i];
+
+                    if (weights[i] < weights[smallest]) {
+                        smallest = i;
+                    }
+                }
+
+                if (healthy.size() > 1 && length * weights[smallest] / total < minLength) {
+                    // The first mirror stays, its response is already open.
+                    healthy.remove(smallest == 0 ? healthy.size() - 1 : smallest);
+                    continue;
+                }
+
+                List<Stripe> stripes = new ArrayList<>(weights.length);
+                long start = 0;
+                double cumulated = 0;
+
+                for (int i = 0; i < weights.length; i++) {
+                    cumulated += weights[i];
+                    long end = i == weights.length - 1 ? length : (long) (length * cumulated / total);
+                    stripes.add(new Stripe(healthy.get(i), start, end));
+                    start = end;
+                }
+
+                return stripes;
+            }
+        }
+
+        /**
+         * The bytes of {@code stripe}, failing over to another mirror when its mirror errors or stalls.
+         * The request is sent on the first read.
+         */
+        Source source(Stripe stripe) {
+            return new FailoverSource(null, failed, stripe.start, stripe.end, stripe.mirror);
+        }
+    }
+
+    private final class FailoverSource implements Source {
+        private final Set<Mirrors.Mirror> failed;
+        private final long end;
+        private final Mirrors.Mirror preferred;
+        private Attempt attempt;
+        private long position;
+
+        FailoverSource(Attempt attempt, Set<Mirrors.Mirror> failed, long start, long end, Mirrors.Mirror preferred) {
+            this.attempt = attempt;
+            this.failed = failed;
+            this.position = start;
+            this.end = end;
+            this.preferred = preferred;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            if (end != -1) {
+                if (position == end) {
+                    return -1;
+                }
+                byteCount = Math.min(byteCount, end - position);
+            }
+
+            if (attempt == null) {
+                attempt = open(position, end, preferred, failed);
+            }
+
+            while (true) {
+                long start = System.nanoTime();
+
+                try {
+                    long read = attempt.source.read(sink, byteCount);
+
+                    if (read != -1) {
+                        position += read;
+                        attempt.mirror.recordBytes(read, System.nanoTime() - start);
+                    } else if (end != -1) {
+                        throw new EOFException("Range ended at " + position + " instead of " + end);
+                    }
+
+                    return read;
+                } catch (IOException e) {
+                    if (canceled) {
+                        throw e;
+                    }
+
+                    attempt.mirror.recordFailure();
+                    failed.add(attempt.mirror);
+                    Util.closeQuietly(attempt.source);
+
+                    Attempt next;
+
+                    try {
+                        next = open(position, end, null, failed);
+                    } catch (IOException ignored) {
+                        throw e;
+                    }
+
+                    if (next.source == null) {
+                        Util.closeQuietly(next.response.body());
+                        throw e;
+                    }
+
+                    attempt = next;
+                }
+            }
+        }
+
+        @Override
+        public Timeout timeout() {
+            return attempt != null ? attempt.source.timeout() : Timeout.NONE;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (attempt != null) {
+                attempt.source.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.HttpUrl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of equivalent URLs serving the same content.
+ * Statistics are kept per mirror and shared by every {@link Download} using this instance,
+ * the fastest healthy mirror is tried first.
+ */
+public final class Mirrors {
+    public static Mirrors create(HttpUrl... urls) {
+        Util.checkNotNull(urls, "urls == null");
+
+        if (urls.length == 0) {
+            throw new IllegalArgumentException("No mirror.");
+        }
+
+        List<Mirror> mirrors = new ArrayList<>(urls.length);
+
+        for (HttpUrl url : urls) {
+            mirrors.add(new Mirror(Util.checkNotNull(url, "url == null")));
+        }
+
+        return new Mirrors(mirrors);
+    }
+
+    private final List<Mirror> mirrors;
+
+    private Mirrors(List<Mirror> mirrors) {
+        this.mirrors = Collections.unmodifiableList(mirrors);
+    }
+
+    public List<Mirror> mirrors() {
+        return mirrors;
+    }
+
+    /**
+     * The mirrors, best first. Mirrors never used yet come first so that they get measured.
+     */
+    List<Mirror> ranked() {
+        final Map<Mirror, Double> scores = new IdentityHashMap<>();
+
+        for (Mirror mirror : mirrors) {
+            scores.put(mirror, mirror.score());
+        }
+
+        List<Mirror> ranked = new ArrayList<>(mirrors);
+        Collections.sort(ranked, new Comparator<Mirror>() {
+            @Override
+            public int compare(Mirror lhs, Mirror rhs) {
+                return Double.compare(scores.get(rhs), scores.get(lhs));
+            }
+        });
+        return ranked;
+    }
+
+    public static final class Mirror {
+        final HttpUrl url;
+        private long requests;
+        private long failures;
+        private long consecutiveFailures;
+        private long bytes;
+        private long transferNanos;
+        private long latencyNanos;
+
+        Mirror(HttpUrl url) {
+            this.url = url;
+        }
+
+        public HttpUrl url() {
+            return url;
+        }
+
+        public synchronized long requests() {
+            return requests;
+        }
+
+        public synchronized long failures() {
+            return failures;
+        }
+
+        /**
+         * Bytes downloaded from this mirror.
+         */
+        public synchronized long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Average time to response headers, in milliseconds.
+         */
+        public synchronized long averageLatencyMillis() {
+            return requests == 0 ? 0 : latencyNanos / requests / 1000000;
+        }
+
+        /**
+         * Measured body throughput, in bytes per second.
+         */
+        public synchronized long bytesPerSecond() {
+            return transferNanos == 0 ? 0 : (long) (bytes * 1e9 / transferNanos);
+        }
+
+        synchronized void recordResponse(long latencyNanos) {
+            this.requests++;
+            this.latencyNanos += latencyNanos;
+        }
+
+        synchronized void recordBytes(long bytes, long transferNanos) {
+            this.bytes += bytes;
+            this.transferNanos += transferNanos;
+            this.consecutiveFailures = 0;
+        }
+
+        synchronized void recordFailure() {
+            this.failures++;
+            this.consecutiveFailures++;
+        }
+
+        synchronized double score() {
+            if (requests == 0 && failures == 0) {
+                return Double.MAX_VALUE;
+            }
+            return (bytesPerSecond() + 1d) / (1 + consecutiveFailures);
+        }
+
+        @Override
+        public String toString() {
+            return url.toString();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression using several cores: the stream is split in blocks deflated concurrently on an
+ * {@link Executor}, each block becoming a member of a multi-member gzip file, which
+ * {@link java.util.zip.GZIPInputStream} and {@code gunzip} read as a single stream.
+ */
+public final class ParallelGzipFilter implements OutputStreamFilter {
+    private static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final ThreadLocal<Compressor> COMPRESSORS = new ThreadLocal<Compressor>() {
+        @Override
+        protected Compressor initialValue() {
+            return new Compressor();
+        }
+    };
+
+    /**
+     * Compress 128 KiB blocks at the default level, with up to two blocks per available processor in flight.
+     */
+    public static ParallelGzipFilter create(Executor executor) {
+        return create(executor, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE,
+                2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Compress blocks of {@code blockSize} bytes at {@code level}. At most {@code maxInFlight} blocks
+     * per download are buffered, waiting to be compressed or written.
+     */
+    public static ParallelGzipFilter create(Executor executor, int level, int blockSize, int maxInFlight) {
+        Util.checkNotNull(executor, "executor == null");
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid level: " + level);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize <= 0");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight <= 0");
+        }
+        return new ParallelGzipFilter(executor, level, blockSize, maxInFlight);
+    }
+
+    private final Executor executor;
+    private final int level;
+    private final int blockSize;
+    private final int maxInFlight;
+
+    private ParallelGzipFilter(Executor executor, int level, int blockSize, int maxInFlight) {
+        this.executor = executor;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public OutputStream create(Download download, OutputStream downstream) {
+        return new BlockOutputStream(downstream, executor, blockSize, maxInFlight) {
+            @Override
+            void encode(long position, byte[] data, int length, Buffer out) {
+                COMPRESSORS.get().member(level, data, length, out);
+            }
+
+            @Override
+            void encodeEmpty(Buffer out) {
+                // A gzip file has at least one member.
+                COMPRESSORS.get().member(level, new byte[0], 0, out);
+            }
+        };
+    }
+
+    /**
+     * Per-thread checksum and scratch buffer. The deflater is per block, its native memory is freed
+     * as soon as the block is compressed instead of when the executor thread is collected.
+     */
+    private static final class Compressor {
+        final CRC32 crc = new CRC32();
+        final byte[] scratch = new byte[64 * 1024];
+
+        void member(int level, byte[] data, int length, Buffer out) {
+            // ID1 ID2 CM FLG, MTIME, XFL OS (unknown).
+            out.writeInt(0x1f8b0800).writeInt(0).writeShort(0x00ff);
+
+            Deflater deflater = new Deflater(level, true);
+
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(scratch);
+                    out.write(scratch, 0, n);
+                }
+            } finally {
+                deflater.end();
+            }
+
+            crc.reset();
+            crc.update(data, 0, length);
+            out.writeIntLe((int) crc.getValue());
+            out.writeIntLe(length);
+        }
+    }
+}
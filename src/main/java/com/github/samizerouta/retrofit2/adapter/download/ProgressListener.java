@@ -16,6 +16,13 @@
 
 package com.github.samizerouta.retrofit2.adapter.download;
 
+/**
+ * Notified of the advancement of a download, on its callback executor.
+ * <p>
+ * Notifications are coalesced: while one is waiting for the callback executor, the bytes read meanwhile
+ * are added to it instead of queueing another. There may be far fewer notifications than reads, but the
+ * last one always reports the full {@code totalBytesRead}.
+ */
 public interface ProgressListener {
     ProgressListener NONE = new ProgressListener() {
         @Override
@@ -23,5 +30,9 @@ public interface ProgressListener {
         }
     };
 
+    /**
+     * {@code bytesRead} is the number of bytes read since the previous notification, {@code totalBytesRead}
+     * includes the resume offset, and {@code contentLength} is -1 if unknown.
+     */
     void onProgress(Download download, long bytesRead, long totalBytesRead, long contentLength);
 }
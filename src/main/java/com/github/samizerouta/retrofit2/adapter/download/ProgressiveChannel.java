@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only channel on a file being downloaded, whose reads block until the bytes are written.
+ * The file is opened on the first read, once the download started writing it.
+ */
+final class ProgressiveChannel implements SeekableByteChannel {
+    private final File file;
+    private final CommittedOffset committed;
+    private FileChannel channel;
+    private long position;
+    volatile boolean open = true;
+
+    ProgressiveChannel(File file, CommittedOffset committed) {
+        this.file = file;
+        this.committed = committed;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        long position = position();
+
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+
+        // Wait without holding the lock, so the channel can be closed meanwhile.
+        long available = committed.await(position, this) - position;
+
+        synchronized (this) {
+            if (!open) {
+                throw new AsynchronousCloseException();
+            }
+
+            if (available <= 0) {
+                return -1;
+            }
+
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+
+            int limit = dst.limit();
+            int read;
+
+            if (dst.remaining() > available) {
+                dst.limit(dst.position() + (int) available);
+            }
+
+            try {
+                read = channel.read(dst, position);
+            } finally {
+                dst.limit(limit);
+            }
+
+            if (read > 0) {
+                this.position = position + read;
+            }
+
+            return read;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("newPosition < 0");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * The number of bytes written so far.
+     */
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return committed.get();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            open = false;
+
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        // Wake up the readers waiting for bytes.
+        committed.wakeUp();
+    }
+
+    private synchronized void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A remote file read on demand. Reads fetch the missing blocks with {@code Range} requests and keep them
+ * in a cache directory, holding at most {@code diskBudget} bytes: the least recently read blocks are evicted.
+ * Sequential reads fetch the next blocks ahead of time.
+ * <p>
+ * The blocks present are recorded in a bitmap, so the cache is reused when the file is opened again,
+ * unless the remote file changed. The cache directory must be dedicated to one remote file: its {@code meta},
+ * {@code bitmap} and numbered block files are replaced, other files are left alone.
+ */
+public final class RemoteFile implements Closeable {
+    private static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    private static final int DEFAULT_READAHEAD = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String META = "meta";
+    private static final String BITMAP = "bitmap";
+
+    /**
+     * Open {@code url} with 1 MiB blocks and reading 4 blocks ahead.
+     */
+    public static RemoteFile open(okhttp3.Call.Factory callFactory, HttpUrl url, File directory,
+                                  long diskBudget) throws IOException {
+        return open(callFactory, url, directory, diskBudget, DEFAULT_BLOCK_SIZE, DEFAULT_READAHEAD);
+    }
+
+    /**
+     * Open {@code url}, caching its blocks of {@code blockSize} bytes in {@code directory}. A {@code HEAD}
+     * request gets the size of the file, and tells whether the cached blocks are still valid.
+     */
+    public static RemoteFile open(okhttp3.Call.Factory callFactory, HttpUrl url, File directory,
+                                  long diskBudget, int blockSize, int readahead) throws IOException {
+        Util.checkNotNull(callFactory, "callFactory == null");
+        Util.checkNotNull(url, "url == null");
+        Util.checkNotNull(directory, "directory == null");
+
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize <= 0");
+        }
+        if (diskBudget < blockSize) {
+            throw new IllegalArgumentException("diskBudget < blockSize");
+        }
+        if (readahead < 0) {
+            throw new IllegalArgumentException("readahead < 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        okhttp3.Response head = callFactory.newCall(new Request.Builder().url(url).head().build()).execute();
+        head.body().close();
+
+        if (!head.isSuccessful()) {
+            throw new IOException("HTTP " + head.code());
+        }
+
+        String contentLength = head.header("Content-Length");
+
+        if (contentLength == null) {
+            throw new IOException("Unknown size.");
+        }
+
+        long size = Long.parseLong(contentLength);
+
+        // Blocks are indexed by int, in the bitmap and the cache.
+        if ((size + blockSize - 1) / blockSize > Integer.MAX_VALUE) {
+            throw new IOException(size + " bytes is too many blocks of " + blockSize + " bytes.");
+        }
+
+        RemoteFile remoteFile = new RemoteFile(callFactory, url, directory, diskBudget, blockSize, readahead,
+                size, head.header("ETag"));
+
+        synchronized (remoteFile) {
+            remoteFile.load();
+        }
+
+        return remoteFile;
+    }
+
+    private final okhttp3.Call.Factory callFactory;
+    private final HttpUrl url;
+    private final File directory;
+    private final long diskBudget;
+    private final int blockSize;
+    private final int readahead;
+    private final long size;
+    private final String etag;
+    private final BitSet present = new BitSet();
+    private final Map<Integer, Boolean> recent = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, Download> fetching = new HashMap<>();
+    private long usedBytes;
+    private boolean closed;
+
+    private RemoteFile(okhttp3.Call.Factory callFactory, HttpUrl url, File directory, long diskBudget,
+                       int blockSize, int readahead, long size, String etag) {
+        this.callFactory = callFactory;
+        this.url = url;
+        this.directory = directory;
+        this.diskBudget = diskBudget;
+        this.blockSize = blockSize;
+        this.readahead = readahead;
+        this.size = size;
+        this.etag = etag;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Bytes of the file currently cached.
+     */
+    public synchronized long cachedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * A read-only channel on the file. Channels are independent, but share the cached blocks.
+     */
+    public SeekableByteChannel openChannel() {
+        return new RemoteChannel();
+    }
+
+    /**
+     * Cancel the fetches in flight. The cached blocks are kept for the next time the file is opened.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Download download : fetching.values()) {
+            download.cancel();
+        }
+        fetching.clear();
+        notifyAll();
+    }
+
+    /**
+     * Read the bytes at {@code position} into {@code dst}, stopping at the end of the block.
+     */
+    int read(ByteBuffer dst, long position, boolean sequential) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+
+        int index = (int) (position / blockSize);
+
+        if (sequential) {
+            prefetch(index + 1);
+        }
+
+        while (true) {
+            await(index);
+
+            FileChannel channel;
+
+            try {
+                channel = FileChannel.open(block(index).toPath(), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                continue; // Evicted meanwhile.
+            }
+
+            try {
+                int limit = dst.limit();
+                long available = blockLength(index) - position % blockSize;
+
+                if (dst.remaining() > available) {
+                    dst.limit(dst.position() + (int) available);
+                }
+
+                try {
+                    return channel.read(dst, position % blockSize);
+                } finally {
+                    dst.limit(limit);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Wait until block {@code index} is cached, fetching it unless a fetch is already in flight.
+     */
+    private void await(int index) throws IOException {
+        Download download;
+
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Closed.");
+                }
+                if (present.get(index)) {
+                    recent.get(index);
+                    return;
+                }
+                if (!fetching.containsKey(index)) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            download = fetch(index);
+        }
+
+        boolean fetched = false;
+
+        try {
+            Response<ResponseBody> response = download.execute();
+
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP " + response.code());
+            }
+            fetched = true;
+        } finally {
+            fetched(index, fetched);
+        }
+    }
+
+    private synchronized void prefetch(int from) {
+        int to = (int) Math.min(from + readahead, blockCount());
+
+        for (int index = from; index < to && !closed; index++) {
+            if (present.get(index) || fetching.containsKey(index)) {
+                continue;
+            }
+
+            final int prefetched = index;
+
+            fetch(index).enqueue(new Callback<ResponseBody>() {
+                @Override
+                public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                    fetched(prefetched, response.isSuccessful());
+                }
+
+                @Override
+                public void onFailure(Call<ResponseBody> call, Throwable t) {
+                    fetched(prefetched, false);
+                }
+            });
+        }
+    }
+
+    private Download fetch(int index) {
+        long start = (long) index * blockSize;
+        long length = blockLength(index);
+
+        Request.Builder request = new Request.Builder()
+                .url(url)
+                .header("Range", "bytes=" + start + "-" + (start + length - 1))
+                .header("Accept-Encoding", "identity");
+
+        if (etag != null) {
+            request.header("If-Range", etag);
+        }
+
+        Download download = new Download.Builder(new RequestCall(callFactory, request.build()))
+                .expectedContentLength(length)
+                .to(temporary(index));
+
+        fetching.put(index, download);
+        return download;
+    }
+
+    private synchronized void fetched(int index, boolean success) {
+        fetching.remove(index);
+        notifyAll();
+
+        if (!success || closed) {
+            temporary(index).delete();
+            return;
+        }
+
+        try {
+            Files.move(temporary(index).toPath(), block(index).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            long length = blockLength(index);
+
+            while (usedBytes + length > diskBudget && !recent.isEmpty()) {
+                int eldest = recent.keySet().iterator().next();
+                recent.remove(eldest);
+                present.clear(eldest);
+                usedBytes -= blockLength(eldest);
+                block(eldest).delete();
+            }
+
+            present.set(index);
+            recent.put(index, Boolean.TRUE);
+            usedBytes += length;
+            writeBitmap();
+        } catch (IOException e) {
+            // The block will be fetched again.
+            present.clear(index);
+            recent.remove(index);
+        }
+    }
+
+    /**
+     * Restore the blocks cached when the file was last opened, unless the file changed.
+     */
+    private void load() throws IOException {
+        File meta = new File(directory, META);
+        String expected = url + "\n" + size + "\n" + etag + "\n" + blockSize + "\n";
+        BitSet bitmap = new BitSet();
+
+        if (meta.exists() && expected.equals(new String(Files.readAllBytes(meta.toPath()), UTF_8))) {
+            File file = new File(directory, BITMAP);
+
+            if (file.exists()) {
+                bitmap = BitSet.valueOf(Files.readAllBytes(file.toPath()));
+            }
+        } else {
+            Files.write(meta.toPath(), expected.getBytes(UTF_8));
+        }
+
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+
+                if (name.equals(BITMAP + ".tmp")) {
+                    file.delete();
+                    continue;
+                }
+
+                // Only the files named like blocks are ours, the others are left alone.
+                boolean temporary = name.endsWith(".tmp");
+                String base = temporary ? name.substring(0, name.length() - ".tmp".length()) : name;
+                int index;
+
+                try {
+                    index = Integer.parseInt(base);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                if (index >= 0 && base.equals(Integer.toString(index)) && (temporary || !bitmap.get(index))) {
+                    file.delete();
+                }
+            }
+        }
+
+        for (int index = bitmap.nextSetBit(0); index >= 0; index = bitmap.nextSetBit(index + 1)) {
+            if (index < blockCount() && block(index).exists() && usedBytes + blockLength(index) <= diskBudget) {
+                present.set(index);
+                recent.put(index, Boolean.TRUE);
+                usedBytes += blockLength(index);
+            } else {
+                block(index).delete();
+            }
+        }
+
+        writeBitmap();
+    }
+
+    private void writeBitmap() throws IOException {
+        File file = new File(directory, BITMAP);
+        File tmp = new File(directory, BITMAP + ".tmp");
+        Files.write(tmp.toPath(), present.toByteArray());
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long blockCount() {
+        return (size + blockSize - 1) / blockSize;
+    }
+
+    private long blockLength(int index) {
+        return Math.min(blockSize, size - (long) index * blockSize);
+    }
+
+    private File block(int index) {
+        return new File(directory, Integer.toString(index));
+    }
+
+    private File temporary(int index) {
+        return new File(directory, index + ".tmp");
+    }
+
+    private final class RemoteChannel implements SeekableByteChannel {
+        private long position;
+        private long next = -1;
+        private boolean open = true;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            long position;
+            boolean sequential;
+
+            synchronized (this) {
+                checkOpen();
+                position = this.position;
+                sequential = position == next;
+            }
+
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+
+            int read = RemoteFile.this.read(dst, position, sequential);
+
+            if (read > 0) {
+                synchronized (this) {
+                    this.position = position + read;
+                    next = this.position;
+                }
+            }
+
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("newPosition < 0");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized void close() {
+            open = false;
+        }
+
+        private synchronized void checkOpen() throws ClosedChannelException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
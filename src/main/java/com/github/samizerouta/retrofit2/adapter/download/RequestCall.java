@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.IOException;
+
+/**
+ * A {@link Call} executing a plain {@link Request}, for downloads not created through a Retrofit service.
+ */
+final class RequestCall implements Call<ResponseBody> {
+    final okhttp3.Call.Factory callFactory;
+    final Request request;
+    private final okhttp3.Call call;
+
+    RequestCall(okhttp3.Call.Factory callFactory, Request request) {
+        this.callFactory = callFactory;
+        this.request = request;
+        this.call = callFactory.newCall(request);
+    }
+
+    @Override
+    public Response<ResponseBody> execute() throws IOException {
+        return response(call.execute());
+    }
+
+    @Override
+    public void enqueue(final Callback<ResponseBody> callback) {
+        call.enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(okhttp3.Call call, IOException e) {
+                callback.onFailure(RequestCall.this, e);
+            }
+
+            @Override
+            public void onResponse(okhttp3.Call call, okhttp3.Response response) {
+                callback.onResponse(RequestCall.this, response(response));
+            }
+        });
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return call.isExecuted();
+    }
+
+    @Override
+    public void cancel() {
+        call.cancel();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return call.isCanceled();
+    }
+
+    @SuppressWarnings("CloneDoesntCallSuperClone")
+    @Override
+    public RequestCall clone() {
+        return new RequestCall(callFactory, request);
+    }
+
+    @Override
+    public Request request() {
+        return request;
+    }
+
+    private static Response<ResponseBody> response(okhttp3.Response response) {
+        if (response.isSuccessful()) {
+            return Response.success(response.body(), response);
+        }
+        return Response.error(response.body(), response);
+    }
+}
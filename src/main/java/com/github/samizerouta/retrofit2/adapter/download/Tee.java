@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An additional target of a {@link Download} with its own filter chain.
+ */
+final class Tee {
+    final File file;
+    final List<Filter<?>> filters;
+
+    Tee(File file, Filter<?>... filters) {
+        this.file = Util.checkNotNull(file, "file == null");
+
+        for (Filter<?> filter : filters) {
+            Util.checkNotNull(filter, "filter == null");
+
+            if (!(filter instanceof OutputStreamFilter) && !(filter instanceof SinkFilter)) {
+                throw new IllegalArgumentException("Unsupported filter: " + filter.getClass().getName());
+            }
+        }
+
+        this.filters = Collections.unmodifiableList(Arrays.asList(filters.clone()));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes the same bytes to a primary sink and to any number of secondary sinks.
+ * Secondary sinks receive shared segments, not copies of the data.
+ */
+final class TeeSink implements Sink {
+    private final Sink primary;
+    private final TeePolicy policy;
+    private final List<Sink> secondaries = new ArrayList<>();
+
+    TeeSink(Sink primary, TeePolicy policy) {
+        this.primary = primary;
+        this.policy = policy;
+    }
+
+    void add(Sink sink) {
+        secondaries.add(sink);
+    }
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        for (Iterator<Sink> iterator = secondaries.iterator(); iterator.hasNext(); ) {
+            Sink sink = iterator.next();
+            Buffer copy = new Buffer();
+            source.copyTo(copy, 0, byteCount);
+
+            try {
+                sink.write(copy, byteCount);
+            } catch (IOException e) {
+                detachOrThrow(iterator, sink, e);
+            }
+        }
+
+        primary.write(source, byteCount);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Iterator<Sink> iterator = secondaries.iterator(); iterator.hasNext(); ) {
+            Sink sink = iterator.next();
+
+            try {
+                sink.flush();
+            } catch (IOException e) {
+                detachOrThrow(iterator, sink, e);
+            }
+        }
+
+        primary.flush();
+    }
+
+    @Override
+    public Timeout timeout() {
+        return primary.timeout();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException thrown = null;
+
+        for (Sink sink : secondaries) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (thrown == null && policy == TeePolicy.FAIL) {
+                    thrown = e;
+                }
+            }
+        }
+
+        try {
+            primary.close();
+        } catch (IOException e) {
+            if (thrown == null) {
+                thrown = e;
+            }
+        }
+
+        if (thrown != null) {
+            throw thrown;
+        }
+    }
+
+    private void detachOrThrow(Iterator<Sink> iterator, Sink sink, IOException e) throws IOException {
+        if (policy == TeePolicy.FAIL) {
+            throw e;
+        }
+
+        iterator.remove();
+        Util.closeQuietly(sink);
+    }
+}
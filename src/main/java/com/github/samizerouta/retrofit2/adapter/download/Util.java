@@ -18,6 +18,9 @@ package com.github.samizerouta.retrofit2.adapter.download;
 
 import java.io.Closeable;
 import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 final class Util {
     private Util() {
@@ -30,6 +33,10 @@ final class Util {
         return object;
     }
 
+    static <T> List<T> immutableCopy(List<T> list) {
+        return list.isEmpty() ? Collections.<T>emptyList() : Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
     static void closeQuietly(Closeable... closeables) {
         for (Closeable closeable : closeables) {
             if (closeable != null) {
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Sink;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decouples network reads from disk writes. Downloads using the same instance hand their bytes
+ * to dedicated writer threads, and are blocked only when the memory budget is exhausted.
+ */
+public final class WriteBehind implements Closeable {
+    private static final Runnable SHUTDOWN = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * Create a write-behind stage holding at most {@code memoryBudget} bytes in flight.
+     * If {@code writerPerDevice} is true each file store gets its own writer thread,
+     * otherwise a single writer is shared.
+     */
+    public static WriteBehind create(long memoryBudget, boolean writerPerDevice) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("memoryBudget <= 0");
+        }
+        return new WriteBehind(memoryBudget, writerPerDevice);
+    }
+
+    private final long memoryBudget;
+    private final boolean writerPerDevice;
+    private final Map<Object, BlockingQueue<Runnable>> writers = new HashMap<>();
+    private boolean closed;
+    private long queuedBytes;
+    private long maxQueuedBytes;
+    private long stallNanos;
+    private long writeNanos;
+
+    private WriteBehind(long memoryBudget, boolean writerPerDevice) {
+        this.memoryBudget = memoryBudget;
+        this.writerPerDevice = writerPerDevice;
+    }
+
+    public long memoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Bytes currently queued for writing.
+     */
+    public synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * High-water mark of {@link #queuedBytes()}.
+     */
+    public synchronized long maxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Total time downloads spent waiting for memory budget.
+     */
+    public synchronized long stallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos);
+    }
+
+    /**
+     * Total time writers spent writing to disk.
+     */
+    public synchronized long writeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writeNanos);
+    }
+
+    /**
+     * Stop the writers once the queued bytes are written.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (BlockingQueue<Runnable> queue : writers.values()) {
+            queue.add(SHUTDOWN);
+        }
+        writers.clear();
+    }
+
+    Sink sink(File file, Sink delegate) throws IOException {
+        return new WriteBehindSink(this, writer(file), delegate);
+    }
+
+    /**
+     * Queue {@code task} on {@code writer}, returns false if this instance is closed.
+     */
+    synchronized boolean submit(BlockingQueue<Runnable> writer, Runnable task) {
+        if (closed) {
+            return false;
+        }
+        writer.add(task);
+        return true;
+    }
+
+    synchronized long acquire(long byteCount) throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            while (queuedBytes >= memoryBudget) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            stallNanos += System.nanoTime() - start;
+        }
+
+        long granted = Math.min(byteCount, memoryBudget - queuedBytes);
+        queuedBytes += granted;
+        maxQueuedBytes = Math.max(maxQueuedBytes, queuedBytes);
+        return granted;
+    }
+
+    synchronized void release(long byteCount, long writeNanos) {
+        this.queuedBytes -= byteCount;
+        this.writeNanos += writeNanos;
+        notifyAll();
+    }
+
+    private synchronized BlockingQueue<Runnable> writer(File file) throws IOException {
+        if (closed) {
+            throw new IOException("WriteBehind closed.");
+        }
+
+        Object key = writerPerDevice ? fileStore(file) : null;
+        BlockingQueue<Runnable> queue = writers.get(key);
+
+        if (queue == null) {
+            queue = new LinkedBlockingQueue<>();
+            writers.put(key, queue);
+
+            Thread thread = new Thread(new Writer(queue), "WriteBehind " + (key == null ? "shared" : key));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return queue;
+    }
+
+    private static Object fileStore(File file) {
+        try {
+            // Names are not unique, every tmpfs is "tmpfs": file stores are equal when they are the same device.
+            return Files.getFileStore(file.getAbsoluteFile().toPath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static final class Writer implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+
+        Writer(BlockingQueue<Runnable> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Runnable task = queue.take(); task != SHUTDOWN; task = queue.take()) {
+                    try {
+                        task.run();
+                    } catch (Throwable ignored) {
+                        // Tasks report their own failures, the writer is shared by other downloads.
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A sink handing its bytes to a {@link WriteBehind} writer thread.
+ * Flushing and closing wait for the queued bytes to be written and report write failures.
+ */
+final class WriteBehindSink implements Sink {
+    private final WriteBehind writeBehind;
+    private final BlockingQueue<Runnable> writer;
+    private final Sink delegate;
+    private int pending;
+    private IOException failure;
+    private boolean closed;
+
+    WriteBehindSink(WriteBehind writeBehind, BlockingQueue<Runnable> writer, Sink delegate) {
+        this.writeBehind = writeBehind;
+        this.writer = writer;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void write(Buffer source, long byteCount) throws IOException {
+        while (byteCount > 0) {
+            checkFailure();
+
+            final Buffer chunk = new Buffer();
+            long granted = writeBehind.acquire(byteCount);
+            chunk.write(source, granted);
+            byteCount -= granted;
+
+            boolean queued = queue(new Runnable() {
+                @Override
+                public void run() {
+                    long size = chunk.size();
+                    long start = System.nanoTime();
+
+                    try {
+                        if (failure() == null) {
+                            delegate.write(chunk, size);
+                        }
+                    } catch (Throwable t) {
+                        fail(t);
+                    } finally {
+                        chunk.clear();
+                        writeBehind.release(size, System.nanoTime() - start);
+                        done();
+                    }
+                }
+            });
+
+            if (!queued) {
+                chunk.clear();
+                writeBehind.release(granted, 0);
+                throw new IOException("WriteBehind closed.");
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure() == null) {
+                        delegate.flush();
+                    }
+                } catch (Throwable t) {
+                    fail(t);
+                } finally {
+                    done();
+                }
+            }
+        });
+        await();
+        checkFailure();
+    }
+
+    @Override
+    public Timeout timeout() {
+        return delegate.timeout();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        boolean queued = queue(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    delegate.close();
+                } catch (Throwable t) {
+                    fail(t);
+                } finally {
+                    done();
+                }
+            }
+        });
+        await();
+
+        if (!queued) {
+            delegate.close();
+            throw new IOException("WriteBehind closed.");
+        }
+
+        checkFailure();
+    }
+
+    private void submit(Runnable task) throws IOException {
+        if (!queue(task)) {
+            throw new IOException("WriteBehind closed.");
+        }
+    }
+
+    private boolean queue(Runnable task) {
+        synchronized (this) {
+            pending++;
+        }
+
+        if (!writeBehind.submit(writer, task)) {
+            done();
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void done() {
+        pending--;
+        notifyAll();
+    }
+
+    private synchronized void await() throws IOException {
+        try {
+            while (pending > 0) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private synchronized IOException failure() {
+        return failure;
+    }
+
+    /**
+     * Record the failure of a task. Anything thrown is kept here, so that the shared writer keeps running.
+     */
+    private synchronized void fail(Throwable t) {
+        if (failure == null) {
+            failure = t instanceof IOException ? (IOException) t : new IOException(t);
+        }
+    }
+
+    private synchronized void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
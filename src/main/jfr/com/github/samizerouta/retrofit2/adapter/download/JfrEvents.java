@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import jdk.jfr.*;
+
+import java.io.File;
+
+/**
+ * {@link Events} recorded with Java Flight Recorder, loaded reflectively on Java 11 and later.
+ * <p>
+ * Flight Recorder is only touched once a recording initialized it: until then every event is disabled,
+ * and downloads don't pay for starting it.
+ */
+final class JfrEvents implements Events {
+    private volatile boolean initialized;
+
+    JfrEvents() {
+        // Called right away if Flight Recorder is already initialized.
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                initialized = true;
+            }
+        });
+    }
+
+    /**
+     * The event types, registered on first use.
+     */
+    private static final class Types {
+        static final EventType DOWNLOAD = EventType.getEventType(DownloadEvent.class);
+        static final EventType CHUNK = EventType.getEventType(ChunkEvent.class);
+        static final EventType CHECKSUM = EventType.getEventType(ChecksumEvent.class);
+        static final EventType VALIDATION = EventType.getEventType(ValidationEvent.class);
+        static final EventType FILTER_CHAIN = EventType.getEventType(FilterChainEvent.class);
+    }
+
+    @Override
+    public Object beginDownload() {
+        if (!initialized || !Types.DOWNLOAD.isEnabled()) {
+            return null;
+        }
+        DownloadEvent event = new DownloadEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitDownload(Object event, Download download, long bytes, String outcome) {
+        if (event == null) {
+            return;
+        }
+        DownloadEvent downloadEvent = (DownloadEvent) event;
+        downloadEvent.end();
+        if (downloadEvent.shouldCommit()) {
+            downloadEvent.host = download.request().url().host();
+            downloadEvent.file = download.file() != null ? download.file().getPath() : null;
+            downloadEvent.bytes = bytes;
+            downloadEvent.outcome = outcome;
+            downloadEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginChunk() {
+        if (!initialized || !Types.CHUNK.isEnabled()) {
+            return null;
+        }
+        ChunkEvent event = new ChunkEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitChunk(Object event, String operation, long bytes) {
+        if (event == null) {
+            return;
+        }
+        ChunkEvent chunkEvent = (ChunkEvent) event;
+        chunkEvent.end();
+        if (chunkEvent.shouldCommit()) {
+            chunkEvent.operation = operation;
+            chunkEvent.bytes = bytes;
+            chunkEvent.commit();
+        }
+    }
+
+    @Override
+    public void commitChecksum(Checksum checksum, long bytes, long hashingNanos) {
+        if (!initialized || !Types.CHECKSUM.isEnabled()) {
+            return;
+        }
+        ChecksumEvent event = new ChecksumEvent();
+        event.algorithm = checksum.algorithm;
+        event.bytes = bytes;
+        event.hashingTime = hashingNanos;
+        event.commit();
+    }
+
+    @Override
+    public Object beginValidation() {
+        if (!initialized || !Types.VALIDATION.isEnabled()) {
+            return null;
+        }
+        ValidationEvent event = new ValidationEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitValidation(Object event, String validation) {
+        if (event == null) {
+            return;
+        }
+        ValidationEvent validationEvent = (ValidationEvent) event;
+        validationEvent.end();
+        if (validationEvent.shouldCommit()) {
+            validationEvent.validation = validation;
+            validationEvent.commit();
+        }
+    }
+
+    @Override
+    public Object beginFilterChain() {
+        if (!initialized || !Types.FILTER_CHAIN.isEnabled()) {
+            return null;
+        }
+        FilterChainEvent event = new FilterChainEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void commitFilterChain(Object event, File file, int filters) {
+        if (event == null) {
+            return;
+        }
+        FilterChainEvent filterChainEvent = (FilterChainEvent) event;
+        filterChainEvent.end();
+        if (filterChainEvent.shouldCommit()) {
+            filterChainEvent.file = file.getPath();
+            filterChainEvent.filters = filters;
+            filterChainEvent.commit();
+        }
+    }
+
+    @Name("retrofit2.download.Download")
+    @Label("Download")
+    @Category({"Retrofit", "Download"})
+    @Description("A download, from the request to the file being written")
+    static final class DownloadEvent extends Event {
+        @Label("Host")
+        String host;
+
+        @Label("File")
+        String file;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("retrofit2.download.Chunk")
+    @Label("Download Chunk")
+    @Category({"Retrofit", "Download"})
+    @Description("A read from the body or a write to the file")
+    @Threshold("10 ms")
+    static final class ChunkEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("retrofit2.download.Checksum")
+    @Label("Download Checksum")
+    @Category({"Retrofit", "Download"})
+    @Description("Time spent hashing a download")
+    static final class ChecksumEvent extends Event {
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Hashing Time")
+        @Timespan
+        long hashingTime;
+    }
+
+    @Name("retrofit2.download.Validation")
+    @Label("Download Validation")
+    @Category({"Retrofit", "Download"})
+    static final class ValidationEvent extends Event {
+        @Label("Validation")
+        String validation;
+    }
+
+    @Name("retrofit2.download.FilterChain")
+    @Label("Download Filter Chain")
+    @Category({"Retrofit", "Download"})
+    @Description("Opening a file and creating its filters")
+    static final class FilterChainEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Filters")
+        int filters;
+    }
+}
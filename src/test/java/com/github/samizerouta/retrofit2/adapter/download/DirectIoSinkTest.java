@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public final class DirectIoSinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Whether {@link DirectIoSink#open} writes to {@code file} with direct I/O.
+     */
+    static boolean supported(File file) throws IOException {
+        Sink sink = DirectIoSink.open(file);
+        sink.close();
+        return sink instanceof DirectIoSink;
+    }
+
+    @Test
+    public void flushPartialBlockThenContinue() throws IOException {
+        File file = folder.newFile();
+        Sink direct = DirectIoSink.open(file);
+        assumeTrue("Direct I/O not supported", direct instanceof DirectIoSink);
+        BufferedSink sink = Okio.buffer(direct);
+
+        sink.writeUtf8("Hello");
+        sink.flush();
+        assertEquals("Hello", Okio.buffer(Okio.source(file)).readUtf8());
+
+        sink.writeUtf8(", World!");
+        sink.close();
+        assertEquals("Hello, World!", Okio.buffer(Okio.source(file)).readUtf8());
+    }
+
+    @Test
+    public void multipleBuffers() throws IOException {
+        File file = folder.newFile();
+        Buffer data = new Buffer();
+
+        for (int i = 0; data.size() < 3 * DirectIoSink.BUFFER_SIZE; i++) {
+            data.writeUtf8(Integer.toString(i));
+        }
+
+        Sink direct = DirectIoSink.open(file);
+        assumeTrue("Direct I/O not supported", direct instanceof DirectIoSink);
+        BufferedSink sink = Okio.buffer(direct);
+        sink.write(data.snapshot());
+        sink.close();
+
+        assertEquals(data.snapshot(), Okio.buffer(Okio.source(file)).readByteString());
+    }
+
+    @Test
+    public void dropBehindFallback() throws IOException {
+        File file = folder.newFile();
+        Buffer data = new Buffer();
+
+        for (int i = 0; data.size() < DirectIoSink.FORCE_INTERVAL + 123; i++) {
+            data.writeUtf8(Integer.toString(i));
+        }
+
+        BufferedSink sink = Okio.buffer(new DirectIoSink.DropBehindSink(FileChannel.open(file.toPath(), WRITE)));
+        sink.write(data.snapshot());
+        sink.close();
+
+        assertEquals(data.snapshot(), Okio.buffer(Okio.source(file)).readByteString());
+    }
+
+    @Test
+    public void append() throws IOException {
+        File file = folder.newFile();
+        Okio.buffer(Okio.sink(file)).writeUtf8("Hello").close();
+
+        BufferedSink sink = Okio.buffer(DirectIoSink.append(file));
+        sink.writeUtf8(", World!");
+        sink.close();
+
+        assertEquals("Hello, World!", Okio.buffer(Okio.source(file)).readUtf8());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
+import okio.Okio;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+public final class DownloadBatchTest {
+    @Rule
+    public final MockWebServer server = new MockWebServer();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OkHttpClient client = new OkHttpClient();
+    private final Map<String, ByteString> bodies = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                ByteString body = bodies.get(request.getPath());
+                return body == null
+                        ? new MockResponse().setResponseCode(404)
+                        : new MockResponse().setBody(new Buffer().write(body));
+            }
+        });
+    }
+
+    @Test
+    public void largestFirst() throws Exception {
+        List<DownloadBatch.Entry> entries = new ArrayList<>();
+
+        for (int size : new int[]{10, 3000, 200, 40000, 5}) {
+            entries.add(entry("/" + size, size, Checksum.NONE));
+        }
+
+        List<DownloadBatch.Result> results = DownloadBatch.start(client, entries, 1, DownloadBatch.Listener.NONE)
+                .await();
+
+        for (String path : new String[]{"/40000", "/3000", "/200", "/10", "/5"}) {
+            assertEquals(path, server.takeRequest().getPath());
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            assertSame(entries.get(i), results.get(i).entry());
+            assertEquals(DownloadBatch.Status.DOWNLOADED, results.get(i).status());
+            assertEquals(entries.get(i).size(), results.get(i).bytes());
+            assertEquals(bodies.get("/" + entries.get(i).size()), Okio.buffer(Okio.source(entries.get(i).file()))
+                    .readByteString());
+        }
+    }
+
+    @Test
+    public void smallFileBackfill() throws Exception {
+        List<DownloadBatch.Entry> entries = new ArrayList<>();
+
+        for (int size : new int[]{10, 3000, 200, 40000, 5}) {
+            entries.add(entry("/" + size, size, Checksum.NONE));
+        }
+
+        // Slow down the largest file, so that its worker can't take another file before the backfill starts.
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                MockResponse response = new MockResponse().setBody(new Buffer().write(bodies.get(request.getPath())));
+                return request.getPath().equals("/40000") ? response.throttleBody(10000, 100, MILLISECONDS) : response;
+            }
+        });
+
+        DownloadBatch.start(client, entries, 2, DownloadBatch.Listener.NONE).await();
+
+        Set<String> first = new HashSet<>();
+        first.add(server.takeRequest().getPath());
+        first.add(server.takeRequest().getPath());
+        assertEquals(new HashSet<>(Arrays.asList("/40000", "/5")), first);
+    }
+
+    @Test
+    public void skipFailAndProgress() throws Exception {
+        DownloadBatch.Entry present = entry("/present", 1000, Checksum.SHA256);
+        Okio.buffer(Okio.sink(present.file())).write(bodies.get("/present")).close();
+
+        DownloadBatch.Entry missing = entry("/missing", 2000, Checksum.SHA256);
+        DownloadBatch.Entry corrupt = new DownloadBatch.Entry(server.url("/corrupt"), folder.newFile(), 300,
+                Checksum.SHA256, ByteString.encodeUtf8("other").sha256().hex());
+        bodies.put("/corrupt", randomBytes(300));
+        DownloadBatch.Entry notFound = new DownloadBatch.Entry(server.url("/404"), folder.newFile(), -1,
+                Checksum.NONE, null);
+
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+
+        List<DownloadBatch.Result> results = DownloadBatch.start(client,
+                Arrays.asList(present, missing, corrupt, notFound), 2, new DownloadBatch.Listener() {
+                    @Override
+                    public void onProgress(DownloadBatch batch, long bytesCompleted, long totalBytes, long etaMillis) {
+                        completed.set(bytesCompleted);
+                        total.set(totalBytes);
+                    }
+                }).await();
+
+        assertEquals(DownloadBatch.Status.SKIPPED, results.get(0).status());
+        assertEquals(DownloadBatch.Status.DOWNLOADED, results.get(1).status());
+        assertEquals(DownloadBatch.Status.FAILED, results.get(2).status());
+        assertTrue(results.get(2).failure() instanceof IOException);
+        assertFalse(corrupt.file().exists());
+        assertEquals(DownloadBatch.Status.FAILED, results.get(3).status());
+
+        // The failed entries are not part of the progress.
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2000, total.get());
+        assertEquals(2000, completed.get());
+    }
+
+    private DownloadBatch.Entry entry(String path, int size, Checksum checksum) throws IOException {
+        ByteString body = randomBytes(size);
+        bodies.put(path, body);
+        String hash = checksum == Checksum.SHA256 ? body.sha256().hex() : null;
+        return new DownloadBatch.Entry(server.url(path), new File(folder.getRoot(), path.substring(1)), size,
+                checksum, hash);
+    }
+
+    private static ByteString randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return ByteString.of(bytes);
+    }
+}
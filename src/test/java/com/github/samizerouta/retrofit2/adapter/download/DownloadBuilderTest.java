@@ -26,6 +26,7 @@ import retrofit2.Response;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import static org.junit.Assert.*;
 
@@ -82,6 +83,8 @@ public final class DownloadBuilderTest {
         assertSame(builder.validationCallback, ValidationCallback.NONE);
         assertTrue(builder.filters.isEmpty());
         assertSame(ProgressListener.NONE, builder.progressListener);
+        assertTrue(builder.tees.isEmpty());
+        assertSame(TeePolicy.FAIL, builder.teePolicy);
         assertNull(builder.tag);
         assertNull(builder.file);
     }
@@ -90,4 +93,29 @@ public final class DownloadBuilderTest {
     public void nullFile() {
         builder.to(null);
     }
-}
\ No newline at end of file
+
+    @Test(expected = NullPointerException.class)
+    public void nullTeeFile() {
+        builder.alsoTo(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedTeeFilter() {
+        builder.alsoTo(FILE, new Filter<Object>() {
+            @Override
+            public Object create(Download download, Object downstream) throws IOException {
+                return downstream;
+            }
+        });
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void publisherWithFilter() {
+        builder.addFilter(new OutputStreamFilter() {
+            @Override
+            public OutputStream create(Download download, OutputStream downstream) {
+                return downstream;
+            }
+        }).toPublisher();
+    }
+}
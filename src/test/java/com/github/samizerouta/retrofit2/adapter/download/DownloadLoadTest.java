@@ -0,0 +1,437 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Streaming;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and latency regression suite, run with {@code mvn test -Pload}.
+ * Thresholds are read from the {@code load.*} system properties set by the profile.
+ */
+public final class DownloadLoadTest {
+    private static final long MIN_THROUGHPUT_MBPS = Long.getLong("load.minThroughputMBps", 40);
+    private static final long MAX_P99_MILLIS = Long.getLong("load.maxP99Millis", 5000);
+    private static final long MAX_FIRST_PROGRESS_MILLIS = Long.getLong("load.maxFirstProgressMillis", 1000);
+    private static final long MAX_HEAP_MB = Long.getLong("load.maxHeapMB", 512);
+    private static final long MAX_THREADS = Long.getLong("load.maxThreads", 200);
+    private static final long MAX_SMALL_FILE_OVERHEAD_PERCENT = Long.getLong("load.maxSmallFileOverheadPercent", 150);
+
+    private static final int CONCURRENCY = 32;
+
+    interface Service {
+        @Streaming
+        @GET("/")
+        Download.Builder download();
+    }
+
+    @Rule
+    public final MockWebServer server = new MockWebServer();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Service service;
+    private ExecutorService callbackExecutor;
+
+    @Before
+    public void setUp() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(CONCURRENCY);
+        dispatcher.setMaxRequestsPerHost(CONCURRENCY);
+
+        service = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .client(new OkHttpClient.Builder().dispatcher(dispatcher).build())
+                .addCallAdapterFactory(DownloadCallAdapterFactory.create())
+                .build()
+                .create(Service.class);
+
+        callbackExecutor = Executors.newSingleThreadExecutor();
+        Measure.reset();
+    }
+
+    @After
+    public void tearDown() {
+        callbackExecutor.shutdownNow();
+    }
+
+    @Test
+    public void largeBody() throws Exception {
+        Buffer body = body(64 * 1024 * 1024);
+        server.enqueue(new MockResponse().setBody(body));
+
+        Measure measure = new Measure("large body", body.size());
+        run(1, measure, service.download());
+        measure.report();
+
+        measure.assertThroughput();
+        measure.assertResources();
+    }
+
+    @Test
+    public void concurrentTransfers() throws Exception {
+        Buffer body = body(1024 * 1024);
+
+        for (int i = 0; i < 4 * CONCURRENCY; i++) {
+            server.enqueue(new MockResponse().setBody(body.clone()));
+        }
+
+        Measure measure = new Measure("concurrent transfers", 4 * CONCURRENCY * body.size());
+        run(4 * CONCURRENCY, measure, service.download());
+        measure.report();
+
+        measure.assertThroughput();
+        measure.assertLatency();
+        measure.assertResources();
+    }
+
+    @Test
+    public void throttledBodies() throws Exception {
+        Buffer body = body(256 * 1024);
+
+        for (int i = 0; i < CONCURRENCY; i++) {
+            server.enqueue(new MockResponse().setBody(body.clone()).throttleBody(64 * 1024, 100, MILLISECONDS));
+        }
+
+        Measure measure = new Measure("throttled bodies", CONCURRENCY * body.size());
+        run(CONCURRENCY, measure, service.download());
+        measure.report();
+
+        measure.assertLatency();
+        measure.assertResources();
+    }
+
+    @Test
+    public void slowCallbackExecutor() throws Exception {
+        Buffer body = body(16 * 1024 * 1024);
+        server.enqueue(new MockResponse().setBody(body));
+
+        Measure measure = new Measure("slow callback executor", body.size());
+        run(1, measure, service.download().callbackExecutor(new java.util.concurrent.Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException ignored) {
+                        }
+                        command.run();
+                    }
+                });
+            }
+        }));
+        measure.report();
+
+        measure.assertThroughput();
+        measure.assertResources();
+    }
+
+    @Test
+    public void midStreamDisconnects() throws Exception {
+        Buffer body = body(1024 * 1024);
+
+        for (int i = 0; i < CONCURRENCY; i++) {
+            server.enqueue(new MockResponse()
+                    .setBody(body.clone())
+                    .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        }
+
+        Measure measure = new Measure("mid-stream disconnects", 0);
+        run(CONCURRENCY, measure, service.download());
+        measure.report();
+
+        assertEquals(CONCURRENCY, measure.failures.get());
+        measure.assertLatency();
+        measure.assertResources();
+    }
+
+    @Test
+    public void smallFiles() throws Exception {
+        byte[] body = body(16 * 1024).readByteArray();
+        // Every round overwrites the same files, so that the file system state doesn't favor either side.
+        File directory = folder.newFolder();
+
+        // Best of five interleaved rounds for each side, after two warm-up rounds.
+        for (int i = 0; i < 2; i++) {
+            smallFiles(directory, body, false);
+            smallFiles(directory, body, true);
+        }
+        long raw = Long.MAX_VALUE;
+        long downloads = Long.MAX_VALUE;
+
+        for (int i = 0; i < 5; i++) {
+            raw = Math.min(raw, smallFiles(directory, body, false));
+            downloads = Math.min(downloads, smallFiles(directory, body, true));
+        }
+
+        System.out.printf("small files: downloads %d ms CPU, raw write and hash %d ms CPU%n",
+                NANOSECONDS.toMillis(downloads), NANOSECONDS.toMillis(raw));
+        assertTrue("per-download overhead regressed", downloads <= raw * MAX_SMALL_FILE_OVERHEAD_PERCENT / 100);
+    }
+
+    /**
+     * Write 2000 files, with downloads or with the least work possible: a digest and a file write.
+     */
+    private long smallFiles(File directory, byte[] body, boolean download) throws Exception {
+        // CPU time of this thread, which runs the downloads, is less sensitive to other processes than wall time.
+        long start = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+
+        for (int i = 0; i < 2000; i++) {
+            File file = new File(directory, Integer.toString(i));
+
+            if (download) {
+                Response<ResponseBody> response = new Download.Builder(new MemoryCall(body))
+                        .validate(Checksum.SHA256, ValidationCallback.NONE)
+                        .to(file)
+                        .execute();
+                assertTrue(response.isSuccessful());
+            } else {
+                MessageDigest.getInstance("SHA-256").digest(body);
+                FileOutputStream out = new FileOutputStream(file);
+                out.write(body);
+                out.close();
+            }
+        }
+
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - start;
+    }
+
+    private void run(int count, final Measure measure, Download.Builder builder) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(count);
+        measure.start();
+
+        for (int i = 0; i < count; i++) {
+            final long start = System.nanoTime();
+            final AtomicReference<Long> firstProgress = new AtomicReference<>();
+            File file = folder.newFile();
+
+            builder.progress(new ProgressListener() {
+                @Override
+                public void onProgress(Download download, long bytesRead, long totalBytesRead, long contentLength) {
+                    if (firstProgress.compareAndSet(null, System.nanoTime())) {
+                        measure.firstProgress(firstProgress.get() - start);
+                    }
+                }
+            }).to(file).enqueue(new Callback<ResponseBody>() {
+                @Override
+                public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                    measure.completed(System.nanoTime() - start);
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(Call<ResponseBody> call, Throwable t) {
+                    measure.failures.incrementAndGet();
+                    measure.completed(System.nanoTime() - start);
+                    latch.countDown();
+                }
+            });
+        }
+
+        assertTrue(latch.await(120, SECONDS));
+        measure.stop();
+    }
+
+    private static Buffer body(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return new Buffer().write(bytes);
+    }
+
+    /**
+     * Serves {@code body} from memory, isolating per-file overhead from the network.
+     */
+    private static final class MemoryCall implements Call<ResponseBody> {
+        private final byte[] body;
+        private boolean executed;
+
+        MemoryCall(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public Response<ResponseBody> execute() {
+            executed = true;
+            return Response.success(ResponseBody.create(null, body));
+        }
+
+        @Override
+        public void enqueue(Callback<ResponseBody> callback) {
+            callback.onResponse(this, execute());
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return executed;
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @SuppressWarnings("CloneDoesntCallSuperClone")
+        @Override
+        public MemoryCall clone() {
+            return new MemoryCall(body);
+        }
+
+        @Override
+        public okhttp3.Request request() {
+            return new okhttp3.Request.Builder().url("http://localhost/").build();
+        }
+    }
+
+    private static final class Measure {
+        final String name;
+        final long bytes;
+        final List<Long> completions = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> firstProgresses = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicLong failures = new AtomicLong();
+        long start;
+        long elapsed;
+
+        static void reset() {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        }
+
+        Measure(String name, long bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+
+        void start() {
+            start = System.nanoTime();
+        }
+
+        void stop() {
+            elapsed = System.nanoTime() - start;
+        }
+
+        void completed(long nanos) {
+            completions.add(nanos);
+        }
+
+        void firstProgress(long nanos) {
+            firstProgresses.add(nanos);
+        }
+
+        double throughputMBps() {
+            return bytes / 1024d / 1024d / (elapsed / 1e9);
+        }
+
+        long percentileMillis(List<Long> values, double percentile) {
+            List<Long> sorted;
+            synchronized (values) {
+                sorted = new ArrayList<>(values);
+            }
+            if (sorted.isEmpty()) {
+                return 0;
+            }
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+            return NANOSECONDS.toMillis(sorted.get(Math.max(index, 0)));
+        }
+
+        long heapPeakMB() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peak += pool.getPeakUsage().getUsed();
+                }
+            }
+            return peak / 1024 / 1024;
+        }
+
+        int peakThreads() {
+            return ManagementFactory.getThreadMXBean().getPeakThreadCount();
+        }
+
+        void report() {
+            System.out.printf("%-24s %8.1f MB/s  p50 %5d ms  p99 %5d ms  first progress p50 %5d ms"
+                            + "  heap peak %4d MB  threads %3d  failures %d%n",
+                    name, throughputMBps(),
+                    percentileMillis(completions, 50), percentileMillis(completions, 99),
+                    percentileMillis(firstProgresses, 50), heapPeakMB(), peakThreads(), failures.get());
+        }
+
+        void assertThroughput() {
+            assertTrue(name + " throughput " + throughputMBps() + " MB/s",
+                    throughputMBps() >= MIN_THROUGHPUT_MBPS);
+        }
+
+        void assertLatency() {
+            assertTrue(name + " p99 completion", percentileMillis(completions, 99) <= MAX_P99_MILLIS);
+            assertTrue(name + " p99 first progress",
+                    percentileMillis(firstProgresses, 99) <= MAX_FIRST_PROGRESS_MILLIS);
+        }
+
+        void assertResources() {
+            assertTrue(name + " heap peak " + heapPeakMB() + " MB", heapPeakMB() <= MAX_HEAP_MB);
+            assertTrue(name + " peak threads " + peakThreads(), peakThreads() <= MAX_THREADS);
+        }
+    }
+}
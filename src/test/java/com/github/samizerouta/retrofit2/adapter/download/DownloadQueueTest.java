@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.OkHttpClient;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.Okio;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Header;
+import retrofit2.http.Streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+public final class DownloadQueueTest {
+    interface Service {
+        @Streaming
+        @GET("/")
+        Download.Builder download(@Header("X-Name") String name);
+    }
+
+    @Rule
+    public final MockWebServer server = new MockWebServer();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OkHttpClient client = new OkHttpClient();
+    private Service service;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        service = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .client(client)
+                .addCallAdapterFactory(DownloadCallAdapterFactory.create())
+                .build()
+                .create(Service.class);
+
+        journal = new File(folder.getRoot(), "journal");
+    }
+
+    @Test
+    public void downloadsAndForgets() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setBody("Hi"));
+        }
+        Latch latch = new Latch(3);
+        DownloadQueue queue = DownloadQueue.open(journal, client, 2, latch);
+
+        File[] files = new File[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = folder.newFile();
+            queue.add(service.download("file" + i).tag("tag" + i).to(files[i]), null);
+        }
+
+        assertTrue(latch.await());
+        assertNull(latch.failure.get());
+        for (File file : files) {
+            assertEquals("Hi", Okio.buffer(Okio.source(file)).readUtf8());
+        }
+        assertEquals(0, queue.size());
+        queue.close();
+
+        DownloadQueue.open(journal, client, 2, new Latch(0)).close();
+        assertEquals(0, journal.length());
+    }
+
+    @Test
+    public void resumesAfterRestart() throws Exception {
+        final Buffer body = new Buffer().write(randomBytes(4 * 1024 * 1024));
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String range = request.getHeader("Range");
+
+                if (range == null) {
+                    return new MockResponse()
+                            .setBody(body.clone())
+                            .throttleBody(256 * 1024, 50, MILLISECONDS);
+                }
+
+                long start = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+                Buffer slice = new Buffer();
+                body.copyTo(slice, start, body.size() - start);
+                return new MockResponse()
+                        .setResponseCode(206)
+                        .setHeader("Content-Range", "bytes " + start + "-" + (body.size() - 1) + "/" + body.size())
+                        .setBody(slice);
+            }
+        });
+        File file = folder.newFile();
+
+        DownloadQueue queue = DownloadQueue.open(journal, client, 1, new Latch(1));
+        queue.add(service.download("big").validate(Checksum.SHA256, ValidationCallback.NONE).to(file),
+                body.sha256().hex());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!new String(Files.readAllBytes(journal.toPath()), Charset.forName("UTF-8")).contains("PROGRESS")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        queue.close();
+
+        Latch latch = new Latch(1);
+        queue = DownloadQueue.open(journal, client, 1, latch);
+
+        assertTrue(latch.await());
+        assertNull(latch.failure.get());
+        assertTrue(latch.response.get().isSuccessful());
+        assertEquals("big", server.takeRequest().getHeader("X-Name"));
+        RecordedRequest resumed = server.takeRequest();
+        assertEquals("big", resumed.getHeader("X-Name"));
+        assertTrue(resumed.getHeader("Range").startsWith("bytes="));
+        assertFalse(resumed.getHeader("Range").startsWith("bytes=0-"));
+        assertEquals(body.snapshot(), Okio.buffer(Okio.source(file)).readByteString());
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void compactsAndIgnoresTruncatedRecord() throws Exception {
+        File file = folder.newFile();
+        String url = DownloadQueue.encode(server.url("/").toString());
+        String path = DownloadQueue.encode(file.getPath());
+        // The last record was cut from "DONE 12" by a crash, but still parses.
+        Files.write(journal.toPath(), ("ADD 0 " + url + " " + path + " NONE ~ ~\n"
+                + "PROGRESS 0 10\n"
+                + "DONE 0\n"
+                + "ADD 1 " + url + " " + path + " NONE ~ tag X-Name big\n"
+                + "DONE 1").getBytes(Charset.forName("UTF-8")));
+        server.enqueue(new MockResponse().setBody("Hi"));
+        Latch latch = new Latch(1);
+
+        DownloadQueue queue = DownloadQueue.open(journal, client, 1, latch);
+
+        assertTrue(latch.await());
+        assertEquals("tag", ((Download) latch.call.get()).tag());
+        assertEquals("big", server.takeRequest().getHeader("X-Name"));
+        assertEquals("Hi", Okio.buffer(Okio.source(file)).readUtf8());
+        queue.close();
+        assertEquals(2, Files.readAllLines(journal.toPath(), Charset.forName("UTF-8")).size());
+    }
+
+    @Test
+    public void keepsFailedAcrossRestart() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        File file = folder.newFile();
+        Latch latch = new Latch(1);
+        DownloadQueue queue = DownloadQueue.open(journal, client, 1, latch);
+        queue.add(service.download("missing").to(file), null);
+
+        assertTrue(latch.await());
+        assertEquals(404, latch.response.get().code());
+        assertEquals(0, queue.size());
+        assertEquals(Collections.singletonList(file), queue.failed());
+        queue.close();
+
+        // Not downloaded again, but still listed after a restart and the compaction.
+        queue = DownloadQueue.open(journal, client, 1, new Latch(0));
+        assertEquals(0, queue.size());
+        assertEquals(Collections.singletonList(file), queue.failed());
+        queue.close();
+
+        server.enqueue(new MockResponse().setBody("Hi"));
+        latch = new Latch(1);
+        queue = DownloadQueue.open(journal, client, 1, latch);
+        queue.retryFailed();
+
+        assertTrue(latch.await());
+        assertTrue(latch.response.get().isSuccessful());
+        assertEquals("Hi", Okio.buffer(Okio.source(file)).readUtf8());
+        assertEquals(2, server.getRequestCount());
+        assertTrue(queue.failed().isEmpty());
+        queue.close();
+
+        DownloadQueue.open(journal, client, 1, new Latch(0)).close();
+        assertEquals(0, journal.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptRecord() throws Exception {
+        Files.write(journal.toPath(), "ADD 0 ~\n".getBytes(Charset.forName("UTF-8")));
+        DownloadQueue.open(journal, client, 1, new Latch(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void filteredDownloadRejected() throws IOException {
+        DownloadQueue queue = DownloadQueue.open(journal, client, 1, new Latch(0));
+
+        try {
+            queue.add(service.download("file").alsoTo(folder.newFile()).to(folder.newFile()), null);
+        } finally {
+            queue.close();
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    static final class Latch implements Callback<ResponseBody> {
+        final CountDownLatch latch;
+        final AtomicReference<Call<ResponseBody>> call = new AtomicReference<>();
+        final AtomicReference<Response<ResponseBody>> response = new AtomicReference<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Latch(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        boolean await() throws InterruptedException {
+            return latch.await(20, SECONDS);
+        }
+
+        @Override
+        public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+            this.call.set(call);
+            this.response.set(response);
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(Call<ResponseBody> call, Throwable t) {
+            this.call.set(call);
+            failure.set(t);
+            latch.countDown();
+        }
+    }
+}
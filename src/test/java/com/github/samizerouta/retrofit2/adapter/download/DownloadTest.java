@@ -16,14 +16,21 @@
 
 package com.github.samizerouta.retrofit2.adapter.download;
 
+import okhttp3.Headers;
 import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
 import okio.*;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
@@ -31,14 +38,32 @@ import retrofit2.Retrofit;
 import retrofit2.http.GET;
 import retrofit2.http.Streaming;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public final class DownloadTest {
     interface Service {
@@ -47,9 +72,29 @@ public final class DownloadTest {
         Download.Builder download();
     }
 
+    private static final SinkFilter FAILING_FILTER = new SinkFilter() {
+        @Override
+        public Sink create(Download download, Sink downstream) throws IOException {
+            return new ForwardingSink(downstream) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    throw new IOException("Boom");
+                }
+            };
+        }
+    };
+
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+    // The counter carries into the upper bytes after one block.
+    private static final byte[] IV = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, -1, -1, -1, -1};
+
     @Rule
     public final MockWebServer server = new MockWebServer();
 
+    @Rule
+    public final MockWebServer mirror = new MockWebServer();
+
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
 
@@ -231,6 +276,817 @@ public final class DownloadTest {
         assertEquals(original, result);
     }
 
+    @Test
+    public void tee() throws IOException {
+        final String original = "Lorem ipsum dolor sit amet, consectetur adipiscing elit," +
+                "sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.";
+        server.enqueue(new MockResponse().setBody(original));
+        File copy = folder.newFile();
+        File compressed = folder.newFile();
+
+        service.download()
+                .alsoTo(copy)
+                .alsoTo(compressed, new SinkFilter() {
+                    @Override
+                    public Sink create(Download download, Sink downstream) throws IOException {
+                        return new GzipSink(downstream);
+                    }
+                })
+                .to(file)
+                .execute();
+
+        assertEquals(original, readFile());
+        assertEquals(original, Okio.buffer(Okio.source(copy)).readUtf8());
+        assertEquals(original, Okio.buffer(new GzipSource(Okio.source(compressed))).readUtf8());
+    }
+
+    @Test(expected = IOException.class)
+    public void teeFailure() throws IOException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+
+        service.download()
+                .alsoTo(folder.newFile(), FAILING_FILTER)
+                .to(file)
+                .execute();
+    }
+
+    @Test
+    public void teeDetach() throws IOException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+
+        Response<?> response = service.download()
+                .alsoTo(folder.newFile(), FAILING_FILTER)
+                .teePolicy(TeePolicy.DETACH)
+                .to(file)
+                .execute();
+
+        assertTrue(response.isSuccessful());
+        assertEquals("Hi", readFile());
+    }
+
+    @Test
+    public void mirrorFailoverWithRange() throws IOException, InterruptedException {
+        final Buffer original = randomBody(64 * 1024);
+        server.enqueue(new MockResponse()
+                .setBody(original.clone())
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        mirror.setDispatcher(new RangeDispatcher(original, true));
+        Mirrors mirrors = Mirrors.create(server.url("/"), mirror.url("/"));
+
+        Response<?> response = service.download()
+                .mirrors(mirrors)
+                .validate(Checksum.SHA256, new ValidationCallback() {
+                    @Override
+                    public void validate(Download download, String checksum) throws IOException {
+                        assertEquals(original.sha256().hex(), checksum);
+                    }
+                })
+                .to(file)
+                .execute();
+
+        assertTrue(response.isSuccessful());
+        assertEquals(original.readByteString(), Okio.buffer(Okio.source(file)).readByteString());
+        assertTrue(mirror.takeRequest().getHeader("Range").startsWith("bytes="));
+        assertEquals(1, mirrors.mirrors().get(0).failures());
+        assertTrue(mirrors.mirrors().get(1).bytes() > 0);
+    }
+
+    @Test
+    public void mirrorFailoverWithoutRange() throws IOException {
+        final Buffer original = randomBody(64 * 1024);
+        server.enqueue(new MockResponse()
+                .setBody(original.clone())
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+        mirror.setDispatcher(new RangeDispatcher(original, false));
+
+        service.download()
+                .mirrors(Mirrors.create(server.url("/"), mirror.url("/")))
+                .to(file)
+                .execute();
+
+        assertEquals(original.readByteString(), Okio.buffer(Okio.source(file)).readByteString());
+    }
+
+    @Test
+    public void mirrorHttpError() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        mirror.enqueue(new MockResponse().setBody("Hi"));
+        Mirrors mirrors = Mirrors.create(server.url("/"), mirror.url("/"));
+
+        Response<?> response = service.download()
+                .mirrors(mirrors)
+                .to(file)
+                .execute();
+
+        assertTrue(response.isSuccessful());
+        assertEquals("Hi", readFile());
+        assertEquals(1, mirrors.mirrors().get(0).failures());
+        assertEquals(2, mirrors.mirrors().get(1).bytes());
+    }
+
+    @Test
+    public void mirrorsAllFailed() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        mirror.enqueue(new MockResponse().setResponseCode(404));
+
+        Response<?> response = service.download()
+                .mirrors(Mirrors.create(server.url("/"), mirror.url("/")))
+                .to(file)
+                .execute();
+
+        assertEquals(404, response.code());
+    }
+
+    @Test
+    public void mirrorsSuccessWithoutBody() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(204));
+        mirror.enqueue(new MockResponse().setResponseCode(204));
+
+        try {
+            service.download()
+                    .mirrors(Mirrors.create(server.url("/"), mirror.url("/")))
+                    .to(file)
+                    .execute();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Unexpected HTTP 204"));
+        }
+    }
+
+    @Test
+    public void mirrorsSuccessWithoutBodyAsync() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(204));
+        mirror.enqueue(new MockResponse().setResponseCode(204));
+        final AtomicReference<Throwable> failureRef = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        service.download()
+                .mirrors(Mirrors.create(server.url("/"), mirror.url("/")))
+                .to(file)
+                .enqueue(new Callback<ResponseBody>() {
+                    @Override
+                    public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Call<ResponseBody> call, Throwable t) {
+                        failureRef.set(t);
+                        latch.countDown();
+                    }
+                });
+
+        assertTrue(latch.await(10, SECONDS));
+        assertTrue(failureRef.get().getMessage().startsWith("Unexpected HTTP 204"));
+    }
+
+    @Test
+    public void mirrorStripes() throws IOException, InterruptedException {
+        final Buffer original = randomBody(3 * 1024 * 1024);
+        server.setDispatcher(new RangeDispatcher(original, true));
+        mirror.setDispatcher(new RangeDispatcher(original, true));
+        Mirrors mirrors = Mirrors.create(server.url("/"), mirror.url("/"));
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try {
+            Response<?> response = service.download()
+                    .mirrors(mirrors, executor)
+                    .validate(Checksum.SHA256, new ValidationCallback() {
+                        @Override
+                        public void validate(Download download, String checksum) throws IOException {
+                            assertEquals(original.sha256().hex(), checksum);
+                        }
+                    })
+                    .to(file)
+                    .execute();
+
+            assertTrue(response.isSuccessful());
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(original.readByteString(), Okio.buffer(Okio.source(file)).readByteString());
+        assertTrue(mirrors.mirrors().get(0).bytes() > 0);
+        assertTrue(mirrors.mirrors().get(1).bytes() > 0);
+
+        // Unmeasured mirrors get equal ranges, the second one is requested with an end.
+        String serverRange = server.takeRequest().getHeader("Range");
+        String mirrorRange = mirror.takeRequest().getHeader("Range");
+        String range = serverRange != null ? serverRange : mirrorRange;
+        assertTrue(serverRange == null || mirrorRange == null);
+        assertEquals("bytes=" + 3 * 512 * 1024 + "-" + (3 * 1024 * 1024 - 1), range);
+    }
+
+    @Test
+    public void mirrorStripeFailover() throws IOException {
+        final Buffer original = randomBody(3 * 1024 * 1024);
+        server.setDispatcher(new RangeDispatcher(original, true));
+        mirror.setDispatcher(new RangeDispatcher(original, true) {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return super.dispatch(request).setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+            }
+        });
+        // Measure the server first, so that it sends the first range.
+        Mirrors mirrors = Mirrors.create(server.url("/"), mirror.url("/"));
+        mirrors.mirrors().get(0).recordResponse(0);
+        mirrors.mirrors().get(0).recordBytes(1024 * 1024, 1000000);
+        mirrors.mirrors().get(1).recordResponse(0);
+        mirrors.mirrors().get(1).recordBytes(1024 * 1024, 1000000);
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try {
+            service.download()
+                    .mirrors(mirrors, executor)
+                    .to(file)
+                    .execute();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(original.readByteString(), Okio.buffer(Okio.source(file)).readByteString());
+        assertEquals(1, mirrors.mirrors().get(1).failures());
+    }
+
+    @Test
+    public void writeBehind() throws IOException {
+        Buffer original = randomBody(256 * 1024);
+        server.enqueue(new MockResponse().setBody(original.clone()));
+        File copy = folder.newFile();
+        WriteBehind writeBehind = WriteBehind.create(16 * 1024, true);
+
+        try {
+            service.download()
+                    .writeBehind(writeBehind)
+                    .alsoTo(copy)
+                    .to(file)
+                    .execute();
+        } finally {
+            writeBehind.close();
+        }
+
+        assertEquals(original.snapshot(), Okio.buffer(Okio.source(file)).readByteString());
+        assertEquals(original.snapshot(), Okio.buffer(Okio.source(copy)).readByteString());
+        assertEquals(0, writeBehind.queuedBytes());
+        assertTrue(writeBehind.maxQueuedBytes() > 0);
+        assertTrue(writeBehind.maxQueuedBytes() <= 16 * 1024);
+    }
+
+    @Test(expected = IOException.class)
+    public void writeBehindClosed() throws IOException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        WriteBehind writeBehind = WriteBehind.create(1024, false);
+        writeBehind.close();
+
+        service.download()
+                .writeBehind(writeBehind)
+                .to(file)
+                .execute();
+    }
+
+    @Test
+    public void writeBehindClosedWhileWriting() throws IOException {
+        WriteBehind writeBehind = WriteBehind.create(1024, false);
+        Sink sink = writeBehind.sink(file, Okio.sink(file));
+        writeBehind.close();
+
+        try {
+            sink.write(new Buffer().writeUtf8("Hi"), 2);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertEquals(0, writeBehind.queuedBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void writeBehindSurvivesFailingSink() throws IOException {
+        WriteBehind writeBehind = WriteBehind.create(1024, false);
+        Sink failing = writeBehind.sink(file, new ForwardingSink(Okio.sink(file)) {
+            @Override
+            public void write(Buffer source, long byteCount) {
+                throw new IllegalStateException("Boom");
+            }
+        });
+
+        failing.write(new Buffer().writeUtf8("Hi"), 2);
+
+        try {
+            failing.close();
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(0, writeBehind.queuedBytes());
+
+        // The second download shares the writer.
+        server.enqueue(new MockResponse().setBody("Hello"));
+        File other = folder.newFile();
+        service.download()
+                .writeBehind(writeBehind)
+                .to(other)
+                .execute();
+
+        assertEquals("Hello", Okio.buffer(Okio.source(other)).readUtf8());
+        writeBehind.close();
+    }
+
+    @Test
+    public void directIo() throws IOException {
+        assumeTrue("Direct I/O not supported", DirectIoSinkTest.supported(file));
+        Buffer original = randomBody(2 * DirectIoSink.BUFFER_SIZE + 123);
+        server.enqueue(new MockResponse().setBody(original.clone()));
+
+        service.download()
+                .directIo(true)
+                .to(file)
+                .execute();
+
+        assertEquals(original.snapshot(), Okio.buffer(Okio.source(file)).readByteString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void teeResumeRejected() throws IOException {
+        Download.Builder builder = service.download().alsoTo(folder.newFile());
+        builder.offset = 4321;
+        builder.to(file);
+    }
+
+    @Test
+    public void directIoResumed() throws IOException {
+        ByteString original = randomBody(10 * 1000).snapshot();
+        int offset = 4321;
+        server.enqueue(new MockResponse().setResponseCode(206).setBody(new Buffer().write(original.substring(offset))));
+        BufferedSink partial = Okio.buffer(Okio.sink(file));
+        partial.write(original.substring(0, offset));
+        partial.close();
+
+        Download.Builder builder = service.download().directIo(true);
+        builder.offset = offset;
+        builder.to(file).execute();
+
+        assertEquals(original, Okio.buffer(Okio.source(file)).readByteString());
+    }
+
+    @Test
+    public void progressCoalesced() throws IOException {
+        server.enqueue(new MockResponse().setBody(randomBody(100 * 1000)));
+        final List<Runnable> reports = new ArrayList<>();
+        final List<long[]> notifications = new ArrayList<>();
+
+        // Reports wait until the download is done: the reads meanwhile are all added to the first one.
+        service.download()
+                .callbackExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        reports.add(command);
+                    }
+                })
+                .progress(new ProgressListener() {
+                    @Override
+                    public void onProgress(Download download, long bytesRead, long totalBytesRead, long contentLength) {
+                        notifications.add(new long[]{bytesRead, totalBytesRead, contentLength});
+                    }
+                })
+                .to(file)
+                .execute();
+
+        assertEquals(1, reports.size());
+        reports.get(0).run();
+
+        assertEquals(1, notifications.size());
+        assertArrayEquals(new long[]{100 * 1000, 100 * 1000, 100 * 1000}, notifications.get(0));
+    }
+
+    @Test
+    public void headValidator() throws IOException {
+        server.enqueue(new MockResponse().setBody("%PDF-1.4 Lorem ipsum").setHeader("Content-Type", "application/pdf"));
+
+        Response<?> response = service.download()
+                .addHeadValidator(4, new HeadValidator() {
+                    @Override
+                    public void validate(Download download, Headers headers, ByteString head) throws IOException {
+                        assertEquals("application/pdf", headers.get("Content-Type"));
+                        assertTrue(head.size() >= 4);
+                        assertTrue(head.rangeEquals(0, ByteString.encodeUtf8("%PDF"), 0, 4));
+                    }
+                })
+                .to(file)
+                .execute();
+
+        assertTrue(response.isSuccessful());
+        assertEquals("%PDF-1.4 Lorem ipsum", readFile());
+    }
+
+    @Test
+    public void headValidatorAbort() throws IOException {
+        server.enqueue(new MockResponse().setBody("<html>Error</html>"));
+        Okio.buffer(Okio.sink(file)).writeUtf8("Previous").close();
+
+        try {
+            service.download()
+                    .addHeadValidator(1, new HeadValidator() {
+                        @Override
+                        public void validate(Download download, Headers headers, ByteString head) throws IOException {
+                            if (head.getByte(0) == '<') {
+                                throw new IOException("HTML");
+                            }
+                        }
+                    })
+                    .to(file)
+                    .execute();
+            fail();
+        } catch (IOException e) {
+            assertEquals("HTML", e.getMessage());
+        }
+
+        assertEquals("Previous", readFile());
+    }
+
+    @Test
+    public void headValidatorRuntimeException() throws IOException {
+        server.enqueue(new MockResponse().setBody("<html>Error</html>"));
+        Okio.buffer(Okio.sink(file)).writeUtf8("Previous").close();
+        Download.Builder builder = service.download()
+                .addHeadValidator(1, new HeadValidator() {
+                    @Override
+                    public void validate(Download download, Headers headers, ByteString head) {
+                        throw new IllegalArgumentException("HTML");
+                    }
+                });
+        Download download = builder.to(file);
+
+        try {
+            download.execute();
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("HTML", e.getMessage());
+        }
+
+        assertTrue(download.aborted);
+        assertEquals("Previous", readFile());
+    }
+
+    @Test
+    public void resumedAbortKeepsPrefix() throws IOException {
+        // Chunked: no Content-Length, the download is aborted once it has started writing.
+        server.enqueue(new MockResponse().setResponseCode(206).setChunkedBody("Lorem ipsum dolor sit amet", 4));
+        Okio.buffer(Okio.sink(file)).writeUtf8("Previous").close();
+
+        Download.Builder builder = service.download().maxContentLength(20);
+        builder.offset = 8;
+
+        try {
+            builder.to(file).execute();
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertEquals("Previous", readFile());
+    }
+
+    @Test(expected = IOException.class)
+    public void maxContentLengthFromHeader() throws IOException {
+        server.enqueue(new MockResponse().setBody("Lorem ipsum dolor sit amet"));
+
+        service.download()
+                .maxContentLength(10)
+                .to(file)
+                .execute();
+    }
+
+    @Test
+    public void maxContentLengthWhileStreaming() throws IOException {
+        server.enqueue(new MockResponse().setChunkedBody(randomBody(64 * 1024), 1024));
+
+        try {
+            service.download()
+                    .maxContentLength(16 * 1024)
+                    .to(file)
+                    .execute();
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertFalse(file.exists());
+    }
+
+    @Test(expected = IOException.class)
+    public void expectedContentLength() throws IOException {
+        server.enqueue(new MockResponse().setChunkedBody("Lorem ipsum dolor sit amet", 4));
+
+        service.download()
+                .expectedContentLength(10)
+                .to(file)
+                .execute();
+    }
+
+    @Test
+    public void hedgeWins() throws IOException {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        server.enqueue(new MockResponse().setBody("Hi"));
+        HedgePolicy hedgePolicy = HedgePolicy.after(100, MILLISECONDS);
+
+        Response<?> response = service.download()
+                .hedge(hedgePolicy)
+                .to(file)
+                .execute();
+
+        assertTrue(response.isSuccessful());
+        assertEquals("Hi", readFile());
+        assertEquals(1, hedgePolicy.hedged());
+        assertEquals(1, hedgePolicy.won());
+
+        // The original request waited at least the hedging delay.
+        assertEquals(1, hedgePolicy.samples().length);
+        assertTrue(hedgePolicy.samples()[0] >= MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void hedgeNotNeeded() throws IOException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        HedgePolicy hedgePolicy = HedgePolicy.after(10, SECONDS);
+
+        service.download()
+                .hedge(hedgePolicy)
+                .to(file)
+                .execute();
+
+        assertEquals("Hi", readFile());
+        assertEquals(0, hedgePolicy.hedged());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void hedgePercentile() {
+        HedgePolicy hedgePolicy = HedgePolicy.atPercentile(90, 1, SECONDS);
+        assertEquals(SECONDS.toNanos(1), hedgePolicy.delayNanos());
+
+        for (int i = 1; i <= 100; i++) {
+            hedgePolicy.recordResponse(MILLISECONDS.toNanos(i), false);
+        }
+
+        assertEquals(MILLISECONDS.toNanos(90), hedgePolicy.delayNanos());
+    }
+
+    @Test
+    public void parallelGzip() throws IOException {
+        Buffer original = new Buffer();
+        for (int i = 0; i < 10000; i++) {
+            original.writeUtf8("Lorem ipsum " + i + "\n");
+        }
+        server.enqueue(new MockResponse().setBody(original.clone()));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            service.download()
+                    .addFilter(ParallelGzipFilter.create(executor, Deflater.BEST_SPEED, 10 * 1024, 3))
+                    .to(file)
+                    .execute();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertTrue(file.length() < original.size());
+        BufferedSource gunzipped = Okio.buffer(Okio.source(new GZIPInputStream(new FileInputStream(file))));
+        assertEquals(original.snapshot(), gunzipped.readByteString());
+        gunzipped.close();
+    }
+
+    @Test
+    public void parallelGzipEmptyBody() throws IOException {
+        server.enqueue(new MockResponse());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            service.download()
+                    .addFilter(ParallelGzipFilter.create(executor))
+                    .to(file)
+                    .execute();
+        } finally {
+            executor.shutdown();
+        }
+
+        BufferedSource gunzipped = Okio.buffer(Okio.source(new GZIPInputStream(new FileInputStream(file))));
+        assertEquals(0, gunzipped.readByteString().size());
+        gunzipped.close();
+    }
+
+    @Test
+    public void aesCtr() throws Exception {
+        Buffer original = randomBody(100 * 1000 + 7);
+        server.enqueue(new MockResponse().setBody(new Buffer().write(aesCtr(original.snapshot().toByteArray()))));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            service.download()
+                    .addFilter(AesCtrFilter.create(executor, KEY, IV, 1024, 3))
+                    .to(file)
+                    .execute();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(original.snapshot(), Okio.buffer(Okio.source(file)).readByteString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void filteredResumeRejected() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            Download.Builder builder = service.download()
+                    .addFilter(AesCtrFilter.create(executor, KEY, IV, 1024, 2));
+            builder.offset = 4321;
+            builder.to(file);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void closeChannelDuringBlockedRead() throws Exception {
+        // Not started: reads block until the channel is closed.
+        final SeekableByteChannel channel = service.download().to(file).openChannel();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    channel.close();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }.start();
+
+        try {
+            channel.read(ByteBuffer.allocate(1));
+            fail();
+        } catch (AsynchronousCloseException expected) {
+        }
+    }
+
+    @Test
+    public void readWhileDownloading() throws IOException, InterruptedException {
+        Buffer original = randomBody(256 * 1024);
+        server.enqueue(new MockResponse().setBody(original.clone()).throttleBody(64 * 1024, 200, MILLISECONDS));
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        Download download = service.download().to(file);
+        BufferedSource first = Okio.buffer(Okio.source(download.openInputStream()));
+        BufferedSource second = Okio.buffer(Okio.source(download.openInputStream()));
+
+        download.enqueue(new Callback<ResponseBody>() {
+            @Override
+            public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<ResponseBody> call, Throwable t) {
+                latch.countDown();
+            }
+        });
+
+        assertEquals(original.snapshot(16), first.readByteString(16));
+        assertEquals(1, latch.getCount());
+        assertEquals(original.snapshot(), second.readByteString());
+        assertEquals(original.snapshot().substring(16), first.readByteString());
+        assertTrue(latch.await(10, SECONDS));
+
+        first.close();
+        second.close();
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void readWhileDownloadingFailure() throws IOException {
+        server.enqueue(new MockResponse()
+                .setBody(randomBody(1024 * 1024))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY));
+
+        Download download = service.download().to(file);
+        BufferedSource source = Okio.buffer(Okio.source(download.openInputStream()));
+
+        try {
+            download.execute();
+            fail();
+        } catch (IOException expected) {
+        }
+
+        try {
+            source.readByteString();
+            fail();
+        } catch (IOException expected) {
+        }
+        source.close();
+    }
+
+    @Test
+    public void publisher() throws InterruptedException {
+        Buffer original = randomBody(64 * 1024 + 10);
+        server.enqueue(new MockResponse().setBody(original.clone()));
+        final AtomicReference<String> checksumRef = new AtomicReference<>();
+
+        Publisher<ByteBuffer> publisher = service.download()
+                .validate(Checksum.SHA256, new ValidationCallback() {
+                    @Override
+                    public void validate(Download download, String checksum) {
+                        checksumRef.set(checksum);
+                    }
+                })
+                .toPublisher();
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        publisher.subscribe(subscriber);
+
+        assertTrue(subscriber.done.await(10, SECONDS));
+        assertNull(subscriber.error);
+        assertTrue(subscriber.completed);
+        assertEquals(original.snapshot(), subscriber.bytes.snapshot());
+        assertEquals(original.sha256().hex(), checksumRef.get());
+    }
+
+    @Test
+    public void publisherDemand() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody(randomBody(1024 * 1024)));
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        service.download().toPublisher().subscribe(subscriber);
+        subscriber.subscription.request(2);
+        Thread.sleep(500);
+
+        assertEquals(2, subscriber.count);
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.cancel();
+        Thread.sleep(100);
+
+        assertEquals(2, subscriber.count);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void publisherHttpError() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        service.download().toPublisher().subscribe(subscriber);
+
+        assertTrue(subscriber.done.await(10, SECONDS));
+        assertTrue(subscriber.error instanceof IOException);
+    }
+
+    @Test
+    public void publisherNonPositiveRequestWhileReading() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody(randomBody(1024 * 1024)));
+        final CountDownLatch inOnNext = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Boolean> overlapped = new AtomicReference<>(false);
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(0) {
+            volatile boolean reading;
+
+            @Override
+            public void onNext(ByteBuffer buffer) {
+                reading = true;
+                inOnNext.countDown();
+                try {
+                    release.await(10, SECONDS);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                reading = false;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                overlapped.set(reading);
+                super.onError(t);
+            }
+        };
+        service.download().toPublisher().subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertTrue(inOnNext.await(10, SECONDS));
+
+        subscriber.subscription.request(0);
+        Thread.sleep(100);
+        assertEquals(1, subscriber.done.getCount());
+        release.countDown();
+
+        assertTrue(subscriber.done.await(10, SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertFalse(overlapped.get());
+    }
+
+    private static byte[] aesCtr(byte[] plaintext) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"), new IvParameterSpec(IV));
+        return cipher.doFinal(plaintext);
+    }
+
     private String readFile() throws IOException {
         BufferedSource source = null;
         try {
@@ -241,6 +1097,60 @@ public final class DownloadTest {
         }
     }
 
+    /**
+     * Requests {@code batch} elements at a time, {@code 0} leaves the requests to the test.
+     */
+    private static class RecordingSubscriber implements Subscriber<ByteBuffer> {
+        final int batch;
+        final Buffer bytes = new Buffer();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Subscription subscription;
+        volatile int count;
+        volatile boolean completed;
+        volatile Throwable error;
+
+        RecordingSubscriber(int batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer buffer) {
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.get(copy);
+            bytes.write(copy);
+            count++;
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+    }
+
+    private static Buffer randomBody(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return new Buffer().write(bytes);
+    }
+
     private String hash(String s, Checksum algorithm) {
         ByteString byteString = ByteString.encodeUtf8(s);
 
@@ -257,4 +1167,40 @@ public final class DownloadTest {
 
         return byteString.hex();
     }
-}
\ No newline at end of file
+
+    /**
+     * Serves {@code body}, honoring {@code Range} requests if asked to.
+     */
+    static class RangeDispatcher extends Dispatcher {
+        private final Buffer body;
+        private final boolean ranges;
+
+        RangeDispatcher(Buffer body, boolean ranges) {
+            this.body = body;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String range = request.getHeader("Range");
+
+            if ("HEAD".equals(request.getMethod())) {
+                return new MockResponse().setHeader("Content-Length", body.size());
+            }
+            if (!ranges || range == null) {
+                return new MockResponse().setBody(body.clone());
+            }
+
+            int dash = range.indexOf('-');
+            long start = Long.parseLong(range.substring("bytes=".length(), dash));
+            long end = dash == range.length() - 1 ? body.size() - 1 : Long.parseLong(range.substring(dash + 1));
+            Buffer slice = new Buffer();
+            body.copyTo(slice, start, end + 1 - start);
+
+            return new MockResponse()
+                    .setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + body.size())
+                    .setBody(slice);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.QueueDispatcher;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public final class RemoteFileTest {
+    private static final int BLOCK_SIZE = 1000;
+
+    @Rule
+    public final MockWebServer server = new MockWebServer();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OkHttpClient client = new OkHttpClient();
+    private ByteString body;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] bytes = new byte[10 * BLOCK_SIZE + 123];
+        new Random(0).nextBytes(bytes);
+        body = ByteString.of(bytes);
+        server.setDispatcher(new DownloadTest.RangeDispatcher(new Buffer().write(body), true));
+        directory = folder.newFolder();
+    }
+
+    @Test
+    public void randomAccess() throws Exception {
+        RemoteFile remoteFile = open(100 * BLOCK_SIZE, 0);
+        SeekableByteChannel channel = remoteFile.openChannel();
+        assertEquals(body.size(), channel.size());
+
+        assertEquals(body.substring(body.size() - 100), read(channel.position(body.size() - 100), 100));
+        assertEquals(body.substring(4990, 5010), read(channel.position(4990), 20));
+        assertEquals(-1, channel.position(body.size()).read(ByteBuffer.allocate(1)));
+
+        // HEAD, then the last block and the two blocks around 5000.
+        assertEquals(4, server.getRequestCount());
+        server.takeRequest();
+        assertEquals("bytes=10000-10122", server.takeRequest().getHeader("Range"));
+        assertEquals("bytes=4000-4999", server.takeRequest().getHeader("Range"));
+        assertEquals("bytes=5000-5999", server.takeRequest().getHeader("Range"));
+        assertEquals(123 + 2 * BLOCK_SIZE, remoteFile.cachedBytes());
+        remoteFile.close();
+    }
+
+    @Test
+    public void sequentialReadahead() throws Exception {
+        RemoteFile remoteFile = open(100 * BLOCK_SIZE, 3);
+        BufferedSource source = Okio.buffer(Okio.source(Channels.newInputStream(remoteFile.openChannel())));
+
+        assertEquals(body, source.readByteString());
+        assertEquals(1 + 11, server.getRequestCount());
+        remoteFile.close();
+    }
+
+    @Test
+    public void evictLeastRecentlyRead() throws Exception {
+        RemoteFile remoteFile = open(3 * BLOCK_SIZE, 0);
+        SeekableByteChannel channel = remoteFile.openChannel();
+
+        for (int i = 0; i < 5; i++) {
+            read(channel.position(i * BLOCK_SIZE), 1);
+        }
+        read(channel.position(2 * BLOCK_SIZE), 1);
+        read(channel.position(5 * BLOCK_SIZE), 1);
+        assertEquals(3 * BLOCK_SIZE, remoteFile.cachedBytes());
+        assertEquals(1 + 6, server.getRequestCount());
+
+        // Blocks 2, 4 and 5 are cached, 3 was evicted.
+        read(channel.position(2 * BLOCK_SIZE), 1);
+        read(channel.position(4 * BLOCK_SIZE), 1);
+        assertEquals(1 + 6, server.getRequestCount());
+        read(channel.position(3 * BLOCK_SIZE), 1);
+        assertEquals(1 + 7, server.getRequestCount());
+        remoteFile.close();
+    }
+
+    @Test
+    public void reopenUsesCachedBlocks() throws Exception {
+        RemoteFile remoteFile = open(100 * BLOCK_SIZE, 0);
+        assertEquals(body.substring(2500, 2600), read(remoteFile.openChannel().position(2500), 100));
+        remoteFile.close();
+
+        remoteFile = open(100 * BLOCK_SIZE, 0);
+        assertEquals(BLOCK_SIZE, remoteFile.cachedBytes());
+        assertEquals(body.substring(2000, 3000), read(remoteFile.openChannel().position(2000), BLOCK_SIZE));
+        remoteFile.close();
+
+        // Two HEAD requests and a single block.
+        assertEquals(3, server.getRequestCount());
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals(i == 1 ? "GET" : "HEAD", request.getMethod());
+        }
+    }
+
+    @Test
+    public void reopenKeepsOtherFiles() throws Exception {
+        File other = new File(directory, "notes.txt");
+        File numbered = new File(directory, "007");
+        Okio.buffer(Okio.sink(other)).writeUtf8("Hi").close();
+        Okio.buffer(Okio.sink(numbered)).writeUtf8("Hi").close();
+        Okio.buffer(Okio.sink(new File(directory, "3.tmp"))).writeUtf8("Hi").close();
+
+        RemoteFile remoteFile = open(100 * BLOCK_SIZE, 0);
+        remoteFile.close();
+
+        assertTrue(other.exists());
+        assertTrue(numbered.exists());
+        assertFalse(new File(directory, "3.tmp").exists());
+    }
+
+    @Test
+    public void tooManyBlocks() throws Exception {
+        server.setDispatcher(new QueueDispatcher());
+        server.enqueue(new MockResponse().setHeader("Content-Length", (Integer.MAX_VALUE + 1L) * 2));
+
+        try {
+            RemoteFile.open(client, server.url("/"), directory, BLOCK_SIZE, 2, 0);
+            fail();
+        } catch (IOException e) {
+            assertEquals(4294967296L + " bytes is too many blocks of 2 bytes.", e.getMessage());
+        }
+    }
+
+    private RemoteFile open(long diskBudget, int readahead) throws IOException {
+        return RemoteFile.open(client, server.url("/"), directory, diskBudget, BLOCK_SIZE, readahead);
+    }
+
+    private static ByteString read(SeekableByteChannel channel, int byteCount) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(byteCount);
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+        }
+        buffer.flip();
+        return ByteString.of(buffer.array(), 0, buffer.limit());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Sami Zerouta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.samizerouta.retrofit2.adapter.download;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import retrofit2.Retrofit;
+import retrofit2.http.GET;
+import retrofit2.http.Streaming;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public final class DownloadEventsTest {
+    interface Service {
+        @Streaming
+        @GET("/")
+        Download.Builder download();
+    }
+
+    @Rule
+    public final MockWebServer server = new MockWebServer();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Service service;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        service = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addCallAdapterFactory(DownloadCallAdapterFactory.create())
+                .build()
+                .create(Service.class);
+
+        file = folder.newFile();
+    }
+
+    @Test
+    public void flightRecorderEnabled() {
+        assertTrue(Events.INSTANCE instanceof JfrEvents);
+    }
+
+    @Test
+    public void events() throws IOException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        List<RecordedEvent> events = record(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.download()
+                            .validate(Checksum.SHA256, ValidationCallback.NONE)
+                            .to(file)
+                            .execute();
+                    service.download()
+                            .to(file)
+                            .execute();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        List<RecordedEvent> downloads = named(events, "retrofit2.download.Download");
+        assertEquals(2, downloads.size());
+        assertEquals(server.getHostName(), downloads.get(0).getString("host"));
+        assertEquals(2, downloads.get(0).getLong("bytes"));
+        assertEquals("success", downloads.get(0).getString("outcome"));
+        assertEquals("HTTP 404", downloads.get(1).getString("outcome"));
+
+        List<RecordedEvent> checksums = named(events, "retrofit2.download.Checksum");
+        assertEquals(1, checksums.size());
+        assertEquals("SHA-256", checksums.get(0).getString("algorithm"));
+        assertEquals(2, checksums.get(0).getLong("bytes"));
+
+        assertFalse(named(events, "retrofit2.download.Chunk").isEmpty());
+        assertEquals(1, named(events, "retrofit2.download.Validation").size());
+        assertEquals(1, named(events, "retrofit2.download.FilterChain").size());
+    }
+
+    @Test
+    public void publisherEvents() throws IOException {
+        server.enqueue(new MockResponse().setBody("Hi"));
+
+        List<RecordedEvent> events = record(new Runnable() {
+            @Override
+            public void run() {
+                final CountDownLatch done = new CountDownLatch(1);
+
+                service.download().toPublisher().subscribe(new Subscriber<ByteBuffer>() {
+                    @Override
+                    public void onSubscribe(Subscription subscription) {
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(ByteBuffer buffer) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        done.countDown();
+                    }
+                });
+
+                try {
+                    assertTrue(done.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        List<RecordedEvent> downloads = named(events, "retrofit2.download.Download");
+        assertEquals(1, downloads.size());
+        assertNull(downloads.get(0).getString("file"));
+        assertEquals("success", downloads.get(0).getString("outcome"));
+    }
+
+    private List<RecordedEvent> record(Runnable runnable) throws IOException {
+        File dump = folder.newFile("recording.jfr");
+        Recording recording = new Recording();
+
+        try {
+            for (String name : new String[]{"Download", "Chunk", "Checksum", "Validation", "FilterChain"}) {
+                recording.enable("retrofit2.download." + name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            runnable.run();
+            recording.stop();
+            recording.dump(dump.toPath());
+        } finally {
+            recording.close();
+        }
+
+        return RecordingFile.readAllEvents(dump.toPath());
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> named = new ArrayList<>();
+
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                named.add(event);
+            }
+        }
+
+        return named;
+    }
+}